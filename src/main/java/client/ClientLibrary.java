@@ -1,33 +1,83 @@
 package client;
 
 import common.model.Event;
+import common.protocol.BufferPool;
 import common.protocol.Protocol;
 import common.protocol.TaggedConnection;
+import common.protocol.TaggedConnection.Frame;
 import common.serialization.Serializer;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class ClientLibrary implements AutoCloseable {
 
   private final Demultiplexer demux;
 
-  private int tagGenerator = 1;
-  private final Lock tagLock = new ReentrantLock();
+  private volatile boolean authenticated = false;
 
-  private boolean authenticated = false;
+  private final Map<String, CompletableFuture<Integer>> productIds = new ConcurrentHashMap<>();
+
+  private volatile boolean watermarkAcks = false;
+  private final AtomicLong sentEvents = new AtomicLong();
+  private long acknowledgedEvents;
+  private long rejectedEvents;
+  private boolean connectionClosed;
+  private final Lock ackLock = new ReentrantLock();
+  private final Condition ackCondition = ackLock.newCondition();
+  private volatile RejectionListener rejectionListener;
+
+  private volatile Coalescer coalescer;
+  private final Lock coalescerLock = new ReentrantLock();
+
+  public interface RejectionListener {
+    void rejected(int tag, int code);
+  }
+
+  private interface RequestWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private interface ResponseReader<T> {
+    T read(DataInputStream in) throws IOException;
+  }
 
   public ClientLibrary(String host, int port) throws IOException {
+    this(host, port, Demultiplexer.DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public ClientLibrary(String host, int port, int maxInFlight) throws IOException {
     Socket socket = new Socket(host, port);
     TaggedConnection connection = new TaggedConnection(socket);
-    this.demux = new Demultiplexer(connection);
+    this.demux = new Demultiplexer(connection, maxInFlight);
+    this.demux.setNotificationListener(
+        new Demultiplexer.NotificationListener() {
+          @Override
+          public void notification(Frame frame) {
+            onNotification(frame);
+          }
+
+          @Override
+          public void closed(IOException cause) {
+            onClosed();
+          }
+        });
     this.demux.start();
   }
 
@@ -35,12 +85,49 @@ public class ClientLibrary implements AutoCloseable {
     this(host, Protocol.DEFAULT_PORT);
   }
 
-  private int newTag() {
-    tagLock.lock();
+  private <T> CompletableFuture<T> call(RequestWriter writer, ResponseReader<T> reader) {
+    CompletableFuture<Frame> response;
+    try (BufferPool.Output request = BufferPool.SHARED.output()) {
+      writer.write(request.data());
+      response = demux.request(request);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return response.thenApply(frame -> decode(frame, reader));
+  }
+
+  private static <T> T decode(Frame frame, ResponseReader<T> reader) {
     try {
-      return tagGenerator++;
+      return reader.read(Serializer.createInput(frame.data, 0, frame.length));
+    } catch (IOException e) {
+      throw new CompletionException(e);
     } finally {
-      tagLock.unlock();
+      frame.release();
+    }
+  }
+
+  private static <T> T decode(byte[] response, ResponseReader<T> reader) {
+    try {
+      return reader.read(Serializer.createInput(response));
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private static <T> T await(CompletableFuture<T> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
     }
   }
 
@@ -48,202 +135,440 @@ public class ClientLibrary implements AutoCloseable {
     return authenticated;
   }
 
+  public CompletableFuture<Boolean> registerAsync(String username, String password) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_REGISTER);
+          out.writeUTF(username);
+          out.writeUTF(password);
+        },
+        in -> in.readInt() == Protocol.OK);
+  }
+
   public boolean register(String username, String password)
       throws IOException, InterruptedException {
-    int tag = newTag();
+    return await(registerAsync(username, password));
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_REGISTER);
-    out.writeUTF(username);
-    out.writeUTF(password);
-    out.flush();
+  public CompletableFuture<Boolean> loginAsync(String username, String password) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_LOGIN);
+          out.writeUTF(username);
+          out.writeUTF(password);
+        },
+        in -> {
+          if (in.readInt() == Protocol.OK) {
+            authenticated = true;
+            return true;
+          }
+          return false;
+        });
+  }
+
+  public boolean login(String username, String password) throws IOException, InterruptedException {
+    return await(loginAsync(username, password));
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public CompletableFuture<Integer> defineProductAsync(String product) {
+    CompletableFuture<Integer> id = productIds.get(product);
+    if (id != null) {
+      return id;
+    }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+    CompletableFuture<Integer> created = new CompletableFuture<>();
+    id = productIds.putIfAbsent(product, created);
+    if (id != null) {
+      return id;
+    }
 
-    return code == Protocol.OK;
+    this.<Integer>call(
+            out -> {
+              out.writeByte(Protocol.MSG_DEFINE_PRODUCT);
+              out.writeUTF(product);
+            },
+            in -> in.readInt() == Protocol.OK ? in.readInt() : -1)
+        .whenComplete(
+            (value, ex) -> {
+              if (ex != null) {
+                productIds.remove(product, created);
+                created.completeExceptionally(ex);
+              } else {
+                created.complete(value);
+              }
+            });
+    return created;
   }
 
-  public boolean login(String username, String password) throws IOException, InterruptedException {
-    int tag = newTag();
+  public int defineProduct(String product) throws IOException, InterruptedException {
+    return await(defineProductAsync(product));
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_LOGIN);
-    out.writeUTF(username);
-    out.writeUTF(password);
-    out.flush();
+  private int knownProductId(String product) {
+    CompletableFuture<Integer> id = productIds.get(product);
+    if (id == null || !id.isDone() || id.isCompletedExceptionally()) {
+      return -1;
+    }
+    return id.join();
+  }
 
-    demux.send(tag, baos.toByteArray());
+  private void writeProduct(DataOutputStream out, int msgType, int msgTypeById, String product)
+      throws IOException {
+    int id = knownProductId(product);
+    if (id >= 0) {
+      out.writeByte(msgTypeById);
+      out.writeInt(id);
+    } else {
+      out.writeByte(msgType);
+      out.writeUTF(product);
+    }
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public CompletableFuture<Boolean> addEventAsync(String product, int quantity, double price) {
+    if (watermarkAcks) {
+      throw new IllegalStateException("Confirmação por marca de água ativa: use sendEvent");
+    }
+    if (!productIds.containsKey(product)) {
+      defineProductAsync(product);
+    }
 
-    if (code == Protocol.OK) {
-      authenticated = true;
-      return true;
+    Coalescer c = coalescer;
+    int id = knownProductId(product);
+    if (c != null && id >= 0) {
+      return c.addEvent(id, quantity, price);
     }
-    return false;
+
+    return call(
+        out -> {
+          writeProduct(out, Protocol.MSG_ADD_EVENT, Protocol.MSG_ADD_EVENT_BY_ID, product);
+          out.writeInt(quantity);
+          out.writeDouble(price);
+        },
+        in -> in.readInt() == Protocol.OK);
   }
 
   public boolean addEvent(String product, int quantity, double price)
       throws IOException, InterruptedException {
-    int tag = newTag();
-
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_ADD_EVENT);
-    out.writeUTF(product);
-    out.writeInt(quantity);
-    out.writeDouble(price);
-    out.flush();
+    return await(addEventAsync(product, quantity, price));
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public void enableCoalescing(long windowMicros, int maxBatch) {
+    coalescerLock.lock();
+    try {
+      if (coalescer == null) {
+        coalescer = new Coalescer(demux, windowMicros, maxBatch);
+      }
+    } finally {
+      coalescerLock.unlock();
+    }
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public CompletableFuture<Boolean> enableWatermarkAcksAsync() {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_ACK_MODE);
+          out.writeByte(Protocol.ACK_WATERMARK);
+        },
+        in -> {
+          if (in.readInt() != Protocol.OK) {
+            return false;
+          }
+          long acknowledged = in.readLong();
+          ackLock.lock();
+          try {
+            acknowledgedEvents = Math.max(acknowledgedEvents, acknowledged);
+          } finally {
+            ackLock.unlock();
+          }
+          watermarkAcks = true;
+          return true;
+        });
+  }
 
-    return code == Protocol.OK;
+  public boolean enableWatermarkAcks() throws IOException, InterruptedException {
+    return await(enableWatermarkAcksAsync());
   }
 
-  public int newDay() throws IOException, InterruptedException {
-    int tag = newTag();
+  public void setRejectionListener(RejectionListener listener) {
+    this.rejectionListener = listener;
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_NEW_DAY);
-    out.flush();
+  public int sendEvent(String product, int quantity, double price) throws IOException {
+    if (!watermarkAcks) {
+      throw new IllegalStateException("Confirmação por marca de água inativa");
+    }
+    if (!productIds.containsKey(product)) {
+      defineProductAsync(product);
+    }
 
-    demux.send(tag, baos.toByteArray());
+    int tag;
+    try (BufferPool.Output request = BufferPool.SHARED.output()) {
+      DataOutputStream out = request.data();
+      writeProduct(out, Protocol.MSG_ADD_EVENT, Protocol.MSG_ADD_EVENT_BY_ID, product);
+      out.writeInt(quantity);
+      out.writeDouble(price);
+      tag = demux.send(request);
+    }
+    sentEvents.incrementAndGet();
+    return tag;
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public boolean awaitAcknowledged(long timeoutMs) throws InterruptedException {
+    long target = sentEvents.get();
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
 
-    if (code == Protocol.OK) {
-      return in.readInt();
+    ackLock.lock();
+    try {
+      while (acknowledgedEvents < target && !connectionClosed) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = ackCondition.awaitNanos(remaining);
+      }
+      return acknowledgedEvents >= target;
+    } finally {
+      ackLock.unlock();
     }
-    return -1;
   }
 
-  public int getQuantity(String product, int d) throws IOException, InterruptedException {
-    int tag = newTag();
+  public long getSentEvents() {
+    return sentEvents.get();
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_QUANTITY);
-    out.writeUTF(product);
-    out.writeInt(d);
-    out.flush();
+  public long getAcknowledgedEvents() {
+    ackLock.lock();
+    try {
+      return acknowledgedEvents;
+    } finally {
+      ackLock.unlock();
+    }
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public long getRejectedEvents() {
+    ackLock.lock();
+    try {
+      return rejectedEvents;
+    } finally {
+      ackLock.unlock();
+    }
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  private void onNotification(Frame frame) {
+    try {
+      DataInputStream in = Serializer.createInput(frame.data, 0, frame.length);
+      int kind = in.readInt();
+      if (kind == Protocol.NOTIFY_WATERMARK) {
+        long acknowledged = in.readLong();
+        long rejected = in.readLong();
+        ackLock.lock();
+        try {
+          acknowledgedEvents = Math.max(acknowledgedEvents, acknowledged);
+          rejectedEvents = Math.max(rejectedEvents, rejected);
+          ackCondition.signalAll();
+        } finally {
+          ackLock.unlock();
+        }
+      } else if (kind == Protocol.NOTIFY_REJECTED) {
+        int tag = in.readInt();
+        int code = in.readInt();
+        RejectionListener l = rejectionListener;
+        if (l != null) {
+          l.rejected(tag, code);
+        }
+      }
+    } catch (IOException ignored) {
+    }
+  }
 
-    if (code == Protocol.OK) {
-      return in.readInt();
+  private void onClosed() {
+    ackLock.lock();
+    try {
+      connectionClosed = true;
+      ackCondition.signalAll();
+    } finally {
+      ackLock.unlock();
     }
-    return -1;
   }
 
-  public double getVolume(String product, int d) throws IOException, InterruptedException {
-    int tag = newTag();
+  public CompletableFuture<Integer> addEventsAsync(List<Event> events) {
+    Map<String, CompletableFuture<Integer>> defined = new HashMap<>();
+    for (Event e : events) {
+      defined.computeIfAbsent(e.getProduct(), this::defineProductAsync);
+    }
+
+    CompletableFuture<Void> ready =
+        CompletableFuture.allOf(defined.values().toArray(new CompletableFuture<?>[0]));
+    Function<Void, CompletableFuture<Integer>> send =
+        v -> {
+          int[] ids = new int[events.size()];
+          for (int i = 0; i < ids.length; i++) {
+            ids[i] = defined.get(events.get(i).getProduct()).join();
+            if (ids[i] < 0) {
+              return CompletableFuture.completedFuture(-1);
+            }
+          }
+
+          CompletableFuture<Integer> total = CompletableFuture.completedFuture(0);
+          for (int from = 0; from < ids.length; from += Protocol.MAX_EVENTS_PER_BATCH) {
+            int to = Math.min(ids.length, from + Protocol.MAX_EVENTS_PER_BATCH);
+            total =
+                total.thenCombine(
+                    addEventBatch(events, ids, from, to), (a, b) -> a < 0 || b < 0 ? -1 : a + b);
+          }
+          return total;
+        };
+
+    // Products defined by this call complete on the reader thread, which must not block sending.
+    return ready.isDone() ? ready.thenCompose(send) : ready.thenComposeAsync(send);
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_VOLUME);
-    out.writeUTF(product);
-    out.writeInt(d);
-    out.flush();
+  public int addEvents(List<Event> events) throws IOException, InterruptedException {
+    return await(addEventsAsync(events));
+  }
 
-    demux.send(tag, baos.toByteArray());
+  private CompletableFuture<Integer> addEventBatch(List<Event> events, int[] ids, int from, int to) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_ADD_EVENTS);
+          out.writeInt(to - from);
+          for (int i = from; i < to; i++) {
+            out.writeInt(ids[i]);
+          }
+          for (int i = from; i < to; i++) {
+            out.writeInt(events.get(i).getQuantity());
+          }
+          for (int i = from; i < to; i++) {
+            out.writeDouble(events.get(i).getPrice());
+          }
+        },
+        in -> in.readInt() == Protocol.OK ? in.readInt() : -1);
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public CompletableFuture<Integer> newDayAsync() {
+    return call(
+        out -> out.writeByte(Protocol.MSG_NEW_DAY),
+        in -> in.readInt() == Protocol.OK ? in.readInt() : -1);
+  }
 
-    if (code == Protocol.OK) {
-      return in.readDouble();
-    }
-    return -1;
+  public int newDay() throws IOException, InterruptedException {
+    return await(newDayAsync());
   }
 
-  public double getAveragePrice(String product, int d) throws IOException, InterruptedException {
-    int tag = newTag();
+  private <T> CompletableFuture<T> aggregation(
+      int msgType,
+      int msgTypeById,
+      String product,
+      int d,
+      boolean includeToday,
+      ResponseReader<T> reader) {
+    Coalescer c = coalescer;
+    if (c != null) {
+      return c.query(msgType, knownProductId(product), product, d, includeToday)
+          .thenApply(response -> decode(response, reader));
+    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_AVG_PRICE);
-    out.writeUTF(product);
-    out.writeInt(d);
-    out.flush();
+    int flag = includeToday ? Protocol.FLAG_INCLUDE_TODAY : 0;
+    return call(
+        out -> {
+          writeProduct(out, msgType | flag, msgTypeById | flag, product);
+          out.writeInt(d);
+        },
+        reader);
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public CompletableFuture<Integer> getQuantityAsync(String product, int d, boolean includeToday) {
+    return aggregation(
+        Protocol.MSG_QUANTITY,
+        Protocol.MSG_QUANTITY_BY_ID,
+        product,
+        d,
+        includeToday,
+        in -> in.readInt() == Protocol.OK ? in.readInt() : -1);
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public int getQuantity(String product, int d) throws IOException, InterruptedException {
+    return getQuantity(product, d, false);
+  }
 
-    if (code == Protocol.OK) {
-      return in.readDouble();
-    }
-    return -1;
+  public int getQuantity(String product, int d, boolean includeToday)
+      throws IOException, InterruptedException {
+    return await(getQuantityAsync(product, d, includeToday));
   }
 
-  public double getMaxPrice(String product, int d) throws IOException, InterruptedException {
-    int tag = newTag();
+  public CompletableFuture<Double> getVolumeAsync(String product, int d, boolean includeToday) {
+    return aggregation(
+        Protocol.MSG_VOLUME,
+        Protocol.MSG_VOLUME_BY_ID,
+        product,
+        d,
+        includeToday,
+        in -> in.readInt() == Protocol.OK ? in.readDouble() : -1);
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_MAX_PRICE);
-    out.writeUTF(product);
-    out.writeInt(d);
-    out.flush();
+  public double getVolume(String product, int d) throws IOException, InterruptedException {
+    return getVolume(product, d, false);
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public double getVolume(String product, int d, boolean includeToday)
+      throws IOException, InterruptedException {
+    return await(getVolumeAsync(product, d, includeToday));
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public CompletableFuture<Double> getAveragePriceAsync(
+      String product, int d, boolean includeToday) {
+    return aggregation(
+        Protocol.MSG_AVG_PRICE,
+        Protocol.MSG_AVG_PRICE_BY_ID,
+        product,
+        d,
+        includeToday,
+        in -> in.readInt() == Protocol.OK ? in.readDouble() : -1);
+  }
 
-    if (code == Protocol.OK) {
-      return in.readDouble();
-    }
-    return -1;
+  public double getAveragePrice(String product, int d) throws IOException, InterruptedException {
+    return getAveragePrice(product, d, false);
   }
 
-  public List<Event> filterEvents(int daysAgo, Set<String> products)
+  public double getAveragePrice(String product, int d, boolean includeToday)
       throws IOException, InterruptedException {
-    int tag = newTag();
+    return await(getAveragePriceAsync(product, d, includeToday));
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_FILTER_EVENTS);
-    out.writeInt(daysAgo);
-    Serializer.writeStringSet(out, products);
-    out.flush();
+  public CompletableFuture<Double> getMaxPriceAsync(String product, int d, boolean includeToday) {
+    return aggregation(
+        Protocol.MSG_MAX_PRICE,
+        Protocol.MSG_MAX_PRICE_BY_ID,
+        product,
+        d,
+        includeToday,
+        in -> in.readInt() == Protocol.OK ? in.readDouble() : -1);
+  }
+
+  public double getMaxPrice(String product, int d) throws IOException, InterruptedException {
+    return getMaxPrice(product, d, false);
+  }
 
-    demux.send(tag, baos.toByteArray());
+  public double getMaxPrice(String product, int d, boolean includeToday)
+      throws IOException, InterruptedException {
+    return await(getMaxPriceAsync(product, d, includeToday));
+  }
 
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+  public CompletableFuture<List<Event>> filterEventsAsync(int daysAgo, Set<String> products) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_FILTER_EVENTS);
+          out.writeInt(daysAgo);
+          Serializer.writeStringSet(out, products);
+        },
+        in -> in.readInt() == Protocol.OK ? deserializeEventsCompact(in) : null);
+  }
 
-    if (code == Protocol.OK) {
-      return deserializeEventsCompact(in);
-    }
-    return null;
+  public List<Event> filterEvents(int daysAgo, Set<String> products)
+      throws IOException, InterruptedException {
+    return await(filterEventsAsync(daysAgo, products));
   }
 
-  private List<Event> deserializeEventsCompact(DataInputStream in) throws IOException {
+  private static List<Event> deserializeEventsCompact(DataInputStream in) throws IOException {
     int nProducts = in.readInt();
     String[] productList = new String[nProducts];
     for (int i = 0; i < nProducts; i++) {
@@ -262,55 +587,45 @@ public class ClientLibrary implements AutoCloseable {
     return events;
   }
 
+  public CompletableFuture<Boolean> waitForSimultaneousAsync(String p1, String p2) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_SIMULTANEOUS);
+          out.writeUTF(p1);
+          out.writeUTF(p2);
+        },
+        in -> in.readInt() == Protocol.OK && in.readBoolean());
+  }
+
   public boolean waitForSimultaneous(String p1, String p2)
       throws IOException, InterruptedException {
-    int tag = newTag();
-
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_SIMULTANEOUS);
-    out.writeUTF(p1);
-    out.writeUTF(p2);
-    out.flush();
-
-    demux.send(tag, baos.toByteArray());
-
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
+    return await(waitForSimultaneousAsync(p1, p2));
+  }
 
-    if (code == Protocol.OK) {
-      return in.readBoolean();
-    }
-    return false;
+  public CompletableFuture<String> waitForConsecutiveAsync(int n) {
+    return call(
+        out -> {
+          out.writeByte(Protocol.MSG_CONSECUTIVE);
+          out.writeInt(n);
+        },
+        in -> {
+          if (in.readInt() == Protocol.OK && in.readBoolean()) {
+            return in.readUTF();
+          }
+          return null;
+        });
   }
 
   public String waitForConsecutive(int n) throws IOException, InterruptedException {
-    int tag = newTag();
-
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeByte(Protocol.MSG_CONSECUTIVE);
-    out.writeInt(n);
-    out.flush();
-
-    demux.send(tag, baos.toByteArray());
-
-    byte[] response = demux.receive(tag);
-    DataInputStream in = Serializer.createInput(response);
-    int code = in.readInt();
-
-    if (code == Protocol.OK) {
-      boolean hasProduct = in.readBoolean();
-      if (hasProduct) {
-        return in.readUTF();
-      }
-    }
-    return null;
+    return await(waitForConsecutiveAsync(n));
   }
 
   @Override
   public void close() throws IOException {
+    Coalescer c = coalescer;
+    if (c != null) {
+      c.close();
+    }
     demux.close();
   }
 }
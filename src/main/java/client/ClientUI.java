@@ -177,44 +177,44 @@ public class ClientUI {
   private void handleQuantity(String[] parts) throws IOException, InterruptedException {
     if (!checkConnected()) return;
     if (parts.length < 3) {
-      System.out.println("Uso: qty <produto> <dias>");
+      System.out.println("Uso: qty <produto> <dias> [hoje]");
       return;
     }
 
-    int qty = client.getQuantity(parts[1], Integer.parseInt(parts[2]));
+    int qty = client.getQuantity(parts[1], Integer.parseInt(parts[2]), includeToday(parts));
     System.out.println(qty >= 0 ? "Quantidade: " + qty : "Erro ou dados inválidos.");
   }
 
   private void handleVolume(String[] parts) throws IOException, InterruptedException {
     if (!checkConnected()) return;
     if (parts.length < 3) {
-      System.out.println("Uso: vol <produto> <dias>");
+      System.out.println("Uso: vol <produto> <dias> [hoje]");
       return;
     }
 
-    double vol = client.getVolume(parts[1], Integer.parseInt(parts[2]));
+    double vol = client.getVolume(parts[1], Integer.parseInt(parts[2]), includeToday(parts));
     System.out.println(vol >= 0 ? "Volume: " + vol : "Erro ou dados inválidos.");
   }
 
   private void handleAverage(String[] parts) throws IOException, InterruptedException {
     if (!checkConnected()) return;
     if (parts.length < 3) {
-      System.out.println("Uso: avg <produto> <dias>");
+      System.out.println("Uso: avg <produto> <dias> [hoje]");
       return;
     }
 
-    double avg = client.getAveragePrice(parts[1], Integer.parseInt(parts[2]));
+    double avg = client.getAveragePrice(parts[1], Integer.parseInt(parts[2]), includeToday(parts));
     System.out.println(avg >= 0 ? "Preço médio: " + avg : "Erro ou dados inválidos.");
   }
 
   private void handleMax(String[] parts) throws IOException, InterruptedException {
     if (!checkConnected()) return;
     if (parts.length < 3) {
-      System.out.println("Uso: max <produto> <dias>");
+      System.out.println("Uso: max <produto> <dias> [hoje]");
       return;
     }
 
-    double max = client.getMaxPrice(parts[1], Integer.parseInt(parts[2]));
+    double max = client.getMaxPrice(parts[1], Integer.parseInt(parts[2]), includeToday(parts));
     System.out.println(max >= -1 ? "Preço máximo: " + max : "Erro ou dados inválidos.");
   }
 
@@ -287,6 +287,10 @@ public class ClientUI {
     }
   }
 
+  private static boolean includeToday(String[] parts) {
+    return parts.length > 3 && parts[3].equalsIgnoreCase("hoje");
+  }
+
   private void showHelp() {
     System.out.println("Comandos disponíveis:");
     System.out.println("  connect [host] [port]    - Conectar ao servidor");
@@ -300,6 +304,7 @@ public class ClientUI {
     System.out.println("  vol <prod> <d>           - Volume de vendas nos últimos d dias");
     System.out.println("  avg <prod> <d>           - Preço médio nos últimos d dias");
     System.out.println("  max <prod> <d>           - Preço máximo nos últimos d dias");
+    System.out.println("  (acrescentar 'hoje' inclui o dia corrente, ex.: qty <prod> <d> hoje)");
     System.out.println("  filter <d> <p1> [p2]     - Eventos do dia d com produtos p1, p2...");
     System.out.println();
     System.out.println("  Notificações (dia corrente, BLOQUEANTES):");
@@ -0,0 +1,287 @@
+package client;
+
+import common.protocol.BufferPool;
+import common.protocol.Protocol;
+import common.protocol.TaggedConnection.Frame;
+import common.serialization.Serializer;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+class Coalescer implements AutoCloseable {
+
+  private static class PendingAdd {
+    final int product;
+    final int quantity;
+    final double price;
+    final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    PendingAdd(int product, int quantity, double price) {
+      this.product = product;
+      this.quantity = quantity;
+      this.price = price;
+    }
+  }
+
+  private static class PendingQuery {
+    final int kind;
+    final int product;
+    final String name;
+    final int d;
+    final boolean includeToday;
+    final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+    PendingQuery(int kind, int product, String name, int d, boolean includeToday) {
+      this.kind = kind;
+      this.product = product;
+      this.name = name;
+      this.d = d;
+      this.includeToday = includeToday;
+    }
+  }
+
+  private final Demultiplexer demux;
+  private final long windowNanos;
+  private final int maxAdds;
+  private final int maxQueries;
+
+  private List<PendingAdd> adds = new ArrayList<>();
+  private List<PendingQuery> queries = new ArrayList<>();
+  private long firstArrival;
+  private boolean closed;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition pending = lock.newCondition();
+
+  private final Thread flusher;
+
+  Coalescer(Demultiplexer demux, long windowMicros, int maxBatch) {
+    this.demux = demux;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.maxAdds = Math.max(1, Math.min(maxBatch, Protocol.MAX_EVENTS_PER_BATCH));
+    this.maxQueries = Math.max(1, Math.min(maxBatch, Protocol.MAX_QUERIES_PER_BATCH));
+
+    this.flusher = new Thread(this::flushLoop, "coalescer");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  CompletableFuture<Boolean> addEvent(int product, int quantity, double price) {
+    PendingAdd add = new PendingAdd(product, quantity, price);
+    lock.lock();
+    try {
+      if (closed) {
+        add.future.completeExceptionally(new IOException("Conexão fechada"));
+        return add.future;
+      }
+      arrived();
+      adds.add(add);
+      if (adds.size() >= maxAdds) {
+        pending.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return add.future;
+  }
+
+  CompletableFuture<byte[]> query(
+      int kind, int product, String name, int d, boolean includeToday) {
+    PendingQuery query = new PendingQuery(kind, product, name, d, includeToday);
+    lock.lock();
+    try {
+      if (closed) {
+        query.future.completeExceptionally(new IOException("Conexão fechada"));
+        return query.future;
+      }
+      arrived();
+      queries.add(query);
+      if (queries.size() >= maxQueries) {
+        pending.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return query.future;
+  }
+
+  private void arrived() {
+    if (adds.isEmpty() && queries.isEmpty()) {
+      firstArrival = System.nanoTime();
+      pending.signal();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      List<PendingAdd> addBatch;
+      List<PendingQuery> queryBatch;
+
+      lock.lock();
+      try {
+        while (!closed && adds.isEmpty() && queries.isEmpty()) {
+          pending.awaitUninterruptibly();
+        }
+        if (closed && adds.isEmpty() && queries.isEmpty()) {
+          return;
+        }
+
+        long remaining = firstArrival + windowNanos - System.nanoTime();
+        while (!closed && remaining > 0 && adds.size() < maxAdds && queries.size() < maxQueries) {
+          try {
+            remaining = pending.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+
+        addBatch = adds;
+        queryBatch = queries;
+        adds = new ArrayList<>();
+        queries = new ArrayList<>();
+      } finally {
+        lock.unlock();
+      }
+
+      for (int from = 0; from < addBatch.size(); from += maxAdds) {
+        sendAdds(addBatch.subList(from, Math.min(addBatch.size(), from + maxAdds)));
+      }
+      for (int from = 0; from < queryBatch.size(); from += maxQueries) {
+        sendQueries(queryBatch.subList(from, Math.min(queryBatch.size(), from + maxQueries)));
+      }
+    }
+  }
+
+  private void sendAdds(List<PendingAdd> batch) {
+    CompletableFuture<Frame> response;
+    try (BufferPool.Output request = BufferPool.SHARED.output()) {
+      DataOutputStream out = request.data();
+      out.writeByte(Protocol.MSG_ADD_EVENTS);
+      out.writeInt(batch.size());
+      for (PendingAdd add : batch) {
+        out.writeInt(add.product);
+      }
+      for (PendingAdd add : batch) {
+        out.writeInt(add.quantity);
+      }
+      for (PendingAdd add : batch) {
+        out.writeDouble(add.price);
+      }
+      response = demux.request(request);
+    } catch (IOException e) {
+      batch.forEach(add -> add.future.completeExceptionally(e));
+      return;
+    }
+
+    response.whenComplete(
+        (frame, ex) -> {
+          if (ex != null) {
+            batch.forEach(add -> add.future.completeExceptionally(ex));
+            return;
+          }
+          try {
+            DataInputStream in = Serializer.createInput(frame.data, 0, frame.length);
+            boolean ok = in.readInt() == Protocol.OK;
+            int accepted = in.readInt();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+              words[i] = in.readLong();
+            }
+            BitSet rejected = BitSet.valueOf(words);
+            if (ok
+                && (rejected.length() > batch.size()
+                    || accepted != batch.size() - rejected.cardinality())) {
+              throw new IOException(
+                  "Resposta de lote inconsistente: "
+                      + accepted
+                      + " aceites, "
+                      + rejected.cardinality()
+                      + " rejeitados em "
+                      + batch.size());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+              batch.get(i).future.complete(ok && !rejected.get(i));
+            }
+          } catch (IOException e) {
+            batch.forEach(add -> add.future.completeExceptionally(e));
+          } finally {
+            frame.release();
+          }
+        });
+  }
+
+  private void sendQueries(List<PendingQuery> batch) {
+    CompletableFuture<Frame> response;
+    try (BufferPool.Output request = BufferPool.SHARED.output()) {
+      DataOutputStream out = request.data();
+      out.writeByte(Protocol.MSG_MULTI_QUERY);
+      out.writeInt(batch.size());
+      for (PendingQuery query : batch) {
+        if (query.product >= 0) {
+          out.writeByte(query.kind + Protocol.MSG_QUANTITY_BY_ID - Protocol.MSG_QUANTITY);
+          out.writeInt(query.product);
+        } else {
+          out.writeByte(query.kind);
+          out.writeUTF(query.name);
+        }
+        out.writeInt(query.d);
+        out.writeBoolean(query.includeToday);
+      }
+      response = demux.request(request);
+    } catch (IOException e) {
+      batch.forEach(query -> query.future.completeExceptionally(e));
+      return;
+    }
+
+    response
+        .thenApply(
+            frame -> {
+              try {
+                DataInputStream in = Serializer.createInput(frame.data, 0, frame.length);
+                if (in.readInt() != Protocol.OK) {
+                  throw new IOException("Consulta múltipla rejeitada");
+                }
+                in.readInt();
+                int pos = 8;
+                for (PendingQuery query : batch) {
+                  int length = query.kind == Protocol.MSG_QUANTITY ? 8 : 12;
+                  byte[] item = new byte[length];
+                  System.arraycopy(frame.data, pos, item, 0, length);
+                  pos += length;
+                  query.future.complete(item);
+                }
+                return null;
+              } catch (IOException e) {
+                throw new CompletionException(e);
+              } finally {
+                frame.release();
+              }
+            })
+        .whenComplete(
+            (done, ex) -> {
+              if (ex != null) {
+                batch.forEach(query -> query.future.completeExceptionally(ex));
+              }
+            });
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      pending.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -1,44 +1,69 @@
 package client;
 
+import common.protocol.BufferPool;
+import common.protocol.Protocol;
 import common.protocol.TaggedConnection;
 import common.protocol.TaggedConnection.Frame;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Demultiplexer implements AutoCloseable {
 
-  private final TaggedConnection connection;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+  private static final int MAX_SLOTS = 1 << 16;
 
-  private final Map<Integer, TagEntry> tagEntries = new HashMap<>();
+  private static final CompletableFuture<Frame> RESERVED = new CompletableFuture<>();
+
+  private final TaggedConnection connection;
 
-  private final Lock lock = new ReentrantLock();
+  private final int slotBits;
+  private final int slotMask;
+  private final int generationMask;
+  private final AtomicReferenceArray<CompletableFuture<Frame>> pending;
+  private final int[] generations;
+  private final Semaphore permits;
+  private final AtomicInteger cursor = new AtomicInteger();
+  private final AtomicInteger unacknowledgedTags = new AtomicInteger();
 
   private Thread readerThread;
   private volatile boolean running;
 
-  private IOException readerException;
+  private volatile IOException readerException;
 
-  private static class TagEntry {
-    final Condition condition;
-    final Queue<byte[]> queue = new ArrayDeque<>();
+  private volatile NotificationListener listener;
 
-    TagEntry(Condition condition) {
-      this.condition = condition;
-    }
+  public interface NotificationListener {
+    void notification(Frame frame);
+
+    void closed(IOException cause);
   }
 
   public Demultiplexer(TaggedConnection connection) {
+    this(connection, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public Demultiplexer(TaggedConnection connection, int maxInFlight) {
+    int slots = Integer.highestOneBit(Math.max(2, Math.min(maxInFlight, MAX_SLOTS) - 1) << 1);
     this.connection = connection;
+    this.slotBits = Integer.numberOfTrailingZeros(slots);
+    this.slotMask = slots - 1;
+    this.generationMask = (1 << (31 - slotBits)) - 1;
+    this.pending = new AtomicReferenceArray<>(slots);
+    this.generations = new int[slots];
+    this.permits = new Semaphore(slots);
     this.running = false;
     this.readerException = null;
   }
 
+  public void setNotificationListener(NotificationListener listener) {
+    this.listener = listener;
+  }
+
   public void start() {
     running = true;
     readerThread = new Thread(this::readerLoop);
@@ -52,74 +77,131 @@ public class Demultiplexer implements AutoCloseable {
 
         Frame frame = connection.receive();
 
-        lock.lock();
-        try {
-
-          TagEntry entry = tagEntries.get(frame.tag);
-          if (entry == null) {
-            entry = new TagEntry(lock.newCondition());
-            tagEntries.put(frame.tag, entry);
+        if (frame.tag == Protocol.NOTIFY_TAG) {
+          NotificationListener l = listener;
+          try {
+            if (l != null) {
+              l.notification(frame);
+            }
+          } finally {
+            frame.release();
           }
-
-          entry.queue.add(frame.data);
-
-          entry.condition.signal();
-
-        } finally {
-          lock.unlock();
+          continue;
         }
+
+        complete(frame);
       }
     } catch (IOException e) {
-
-      lock.lock();
+      readerFailed(e);
+    } catch (RuntimeException e) {
       try {
-        readerException = e;
-        running = false;
-
-        for (TagEntry entry : tagEntries.values()) {
-          entry.condition.signalAll();
-        }
-      } finally {
-        lock.unlock();
+        connection.close();
+      } catch (IOException ignored) {
       }
+      readerFailed(new IOException("Erro ao processar resposta do servidor", e));
     }
   }
 
-  public void send(Frame frame) throws IOException {
-    connection.send(frame);
-  }
+  private void readerFailed(IOException cause) {
+    readerException = cause;
+    running = false;
+    failAll(cause);
 
-  public void send(int tag, byte[] data) throws IOException {
-    connection.send(tag, data);
+    NotificationListener l = listener;
+    if (l != null) {
+      l.closed(cause);
+    }
   }
 
-  public byte[] receive(int tag) throws IOException, InterruptedException {
-    lock.lock();
-    try {
+  private void complete(Frame frame) {
+    int tag = frame.tag;
+    if (tag <= 0) {
+      frame.release();
+      return;
+    }
 
-      TagEntry entry = tagEntries.get(tag);
-      if (entry == null) {
-        entry = new TagEntry(lock.newCondition());
-        tagEntries.put(tag, entry);
-      }
+    int slot = tag & slotMask;
+    CompletableFuture<Frame> future = pending.get(slot);
+    if (future != null
+        && future != RESERVED
+        && generations[slot] == tag >>> slotBits
+        && pending.compareAndSet(slot, future, null)) {
+      permits.release();
+      future.complete(frame);
+    } else {
+      frame.release();
+    }
+  }
 
-      while (entry.queue.isEmpty() && running && readerException == null) {
-        entry.condition.await();
+  private void failAll(IOException cause) {
+    for (int slot = 0; slot <= slotMask; slot++) {
+      CompletableFuture<Frame> future = pending.get(slot);
+      if (future != null && future != RESERVED && pending.compareAndSet(slot, future, null)) {
+        permits.release();
+        future.completeExceptionally(cause);
       }
+    }
+  }
 
-      if (readerException != null) {
-        throw readerException;
-      }
+  private IOException closedException() {
+    IOException e = readerException;
+    return e != null ? e : new IOException("Conexão fechada");
+  }
 
-      if (!running && entry.queue.isEmpty()) {
-        throw new IOException("Conexão fechada");
-      }
+  public CompletableFuture<Frame> request(BufferPool.Output request) {
+    return request(request.buffer(), 0, request.size());
+  }
+
+  public CompletableFuture<Frame> request(byte[] data, int offset, int length) {
+    CompletableFuture<Frame> future = new CompletableFuture<>();
+    if (!running) {
+      future.completeExceptionally(closedException());
+      return future;
+    }
+
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.completeExceptionally(new InterruptedIOException("Pedido interrompido"));
+      return future;
+    }
 
-      return entry.queue.poll();
+    int slot = cursor.getAndIncrement() & slotMask;
+    while (!pending.compareAndSet(slot, null, RESERVED)) {
+      slot = cursor.getAndIncrement() & slotMask;
+    }
+    int generation = (generations[slot] + 1) & generationMask;
+    if (generation == 0) {
+      generation = 1;
+    }
+    generations[slot] = generation;
+    pending.set(slot, future);
+    int tag = generation << slotBits | slot;
+
+    if (!running) {
+      if (pending.compareAndSet(slot, future, null)) {
+        permits.release();
+        future.completeExceptionally(closedException());
+      }
+      return future;
+    }
 
-    } finally {
-      lock.unlock();
+    try {
+      connection.send(tag, data, offset, length);
+    } catch (IOException e) {
+      if (pending.compareAndSet(slot, future, null)) {
+        permits.release();
+      }
+      future.completeExceptionally(e);
     }
+    return future;
+  }
+
+  public int send(BufferPool.Output request) throws IOException {
+    int tag = Integer.MIN_VALUE | (unacknowledgedTags.getAndIncrement() & Integer.MAX_VALUE);
+    connection.send(tag, request);
+    return tag;
   }
 
   @Override
@@ -132,13 +214,6 @@ public class Demultiplexer implements AutoCloseable {
 
     connection.close();
 
-    lock.lock();
-    try {
-      for (TagEntry entry : tagEntries.values()) {
-        entry.condition.signalAll();
-      }
-    } finally {
-      lock.unlock();
-    }
+    failAll(closedException());
   }
 }
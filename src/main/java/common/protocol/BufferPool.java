@@ -0,0 +1,145 @@
+package common.protocol;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class BufferPool {
+
+  public static final BufferPool SHARED = new BufferPool();
+
+  private static final int MIN_SHIFT = 8;
+  private static final int MAX_SHIFT = 20;
+  private static final int BUFFERS_PER_CLASS = 64;
+  private static final int MAX_IDLE_OUTPUTS = 256;
+
+  private static class SizeClass {
+    final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    final Lock lock = new ReentrantLock();
+  }
+
+  public final class Output extends OutputStream {
+    private byte[] buf;
+    private int count;
+    private final DataOutputStream data = new DataOutputStream(this);
+
+    public DataOutputStream data() {
+      return data;
+    }
+
+    public byte[] buffer() {
+      return buf;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(count + 1);
+      buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    private void ensureCapacity(int needed) {
+      if (needed <= buf.length) {
+        return;
+      }
+      byte[] bigger = acquire(Math.max(needed, buf.length * 2));
+      System.arraycopy(buf, 0, bigger, 0, count);
+      release(buf);
+      buf = bigger;
+    }
+
+    @Override
+    public void close() {
+      if (buf == null) {
+        return;
+      }
+      release(buf);
+      buf = null;
+      count = 0;
+      outputsLock.lock();
+      try {
+        if (outputs.size() < MAX_IDLE_OUTPUTS) {
+          outputs.push(this);
+        }
+      } finally {
+        outputsLock.unlock();
+      }
+    }
+  }
+
+  private final SizeClass[] classes = new SizeClass[MAX_SHIFT + 1];
+
+  private final ArrayDeque<Output> outputs = new ArrayDeque<>();
+  private final Lock outputsLock = new ReentrantLock();
+
+  public BufferPool() {
+    for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+      classes[shift] = new SizeClass();
+    }
+  }
+
+  public byte[] acquire(int size) {
+    if (size > 1 << MAX_SHIFT) {
+      return new byte[size];
+    }
+    int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+    SizeClass sc = classes[shift];
+    sc.lock.lock();
+    try {
+      byte[] buf = sc.free.poll();
+      if (buf != null) {
+        return buf;
+      }
+    } finally {
+      sc.lock.unlock();
+    }
+    return new byte[1 << shift];
+  }
+
+  public void release(byte[] buf) {
+    int length = buf.length;
+    if (Integer.bitCount(length) != 1) {
+      return;
+    }
+    int shift = Integer.numberOfTrailingZeros(length);
+    if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+      return;
+    }
+    SizeClass sc = classes[shift];
+    sc.lock.lock();
+    try {
+      if (sc.free.size() < BUFFERS_PER_CLASS) {
+        sc.free.push(buf);
+      }
+    } finally {
+      sc.lock.unlock();
+    }
+  }
+
+  public Output output() {
+    Output output;
+    outputsLock.lock();
+    try {
+      output = outputs.poll();
+    } finally {
+      outputsLock.unlock();
+    }
+    if (output == null) {
+      output = new Output();
+    }
+    output.buf = acquire(1 << MIN_SHIFT);
+    return output;
+  }
+}
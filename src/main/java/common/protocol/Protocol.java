@@ -10,6 +10,14 @@ public class Protocol {
 
   public static final int MSG_NEW_DAY = 11;
 
+  public static final int MSG_DEFINE_PRODUCT = 12;
+
+  public static final int MSG_ADD_EVENT_BY_ID = 13;
+
+  public static final int MSG_ADD_EVENTS = 14;
+
+  public static final int MSG_ACK_MODE = 15;
+
   public static final int MSG_QUANTITY = 20;
 
   public static final int MSG_VOLUME = 21;
@@ -18,12 +26,34 @@ public class Protocol {
 
   public static final int MSG_MAX_PRICE = 23;
 
+  public static final int MSG_QUANTITY_BY_ID = 24;
+
+  public static final int MSG_VOLUME_BY_ID = 25;
+
+  public static final int MSG_AVG_PRICE_BY_ID = 26;
+
+  public static final int MSG_MAX_PRICE_BY_ID = 27;
+
+  public static final int MSG_MULTI_QUERY = 28;
+
   public static final int MSG_FILTER_EVENTS = 30;
 
   public static final int MSG_SIMULTANEOUS = 40;
 
   public static final int MSG_CONSECUTIVE = 41;
 
+  public static final int FLAG_INCLUDE_TODAY = 0x40;
+
+  public static final int ACK_EACH = 0;
+
+  public static final int ACK_WATERMARK = 1;
+
+  public static final int NOTIFY_TAG = 0;
+
+  public static final int NOTIFY_WATERMARK = 1;
+
+  public static final int NOTIFY_REJECTED = 2;
+
   public static final int OK = 0;
 
   public static final int ERROR = 1;
@@ -38,6 +68,12 @@ public class Protocol {
 
   public static final int ERROR_NO_DATA = 6;
 
+  public static final int ERROR_UNKNOWN_PRODUCT = 7;
+
+  public static final int MAX_EVENTS_PER_BATCH = 8192;
+
+  public static final int MAX_QUERIES_PER_BATCH = 1024;
+
   public static final int DEFAULT_PORT = 8080;
 
   private Protocol() {}
@@ -1,9 +1,12 @@
 package common.protocol;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,24 +15,60 @@ public class TaggedConnection implements AutoCloseable {
   public static class Frame {
     public final int tag;
     public final byte[] data;
+    public final int length;
 
     public Frame(int tag, byte[] data) {
+      this(tag, data, data.length);
+    }
+
+    public Frame(int tag, byte[] data, int length) {
       this.tag = tag;
       this.data = data;
+      this.length = length;
+    }
+
+    public void release() {
+      BufferPool.SHARED.release(data);
+    }
+  }
+
+  public static class FrameBuffer {
+    public int tag;
+    public int length;
+    public byte[] data;
+
+    public FrameBuffer(int capacity) {
+      this.data = BufferPool.SHARED.acquire(capacity);
+    }
+
+    public void release() {
+      BufferPool.SHARED.release(data);
     }
   }
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   private final Socket socket;
   private final DataInputStream in;
-  private final DataOutputStream out;
+  private final OutputStream out;
 
   private final Lock readLock = new ReentrantLock();
+
   private final Lock writeLock = new ReentrantLock();
+  private final Condition written = writeLock.newCondition();
+  private byte[] pending = new byte[BUFFER_SIZE];
+  private int pendingLength;
+  private byte[] spare = new byte[BUFFER_SIZE];
+  private long batch = 1;
+  private long writtenBatch;
+  private boolean flushing;
+  private IOException failure;
 
   public TaggedConnection(Socket socket) throws IOException {
     this.socket = socket;
-    this.in = new DataInputStream(socket.getInputStream());
-    this.out = new DataOutputStream(socket.getOutputStream());
+    this.socket.setTcpNoDelay(true);
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+    this.out = socket.getOutputStream();
   }
 
   public Socket getSocket() {
@@ -37,30 +76,110 @@ public class TaggedConnection implements AutoCloseable {
   }
 
   public void send(Frame frame) throws IOException {
-    send(frame.tag, frame.data);
+    send(frame.tag, frame.data, 0, frame.length);
+  }
+
+  public void send(int tag, BufferPool.Output output) throws IOException {
+    send(tag, output.buffer(), 0, output.size());
   }
 
   public void send(int tag, byte[] data) throws IOException {
+    send(tag, data, 0, data.length);
+  }
+
+  public void send(int tag, byte[] data, int offset, int length) throws IOException {
     writeLock.lock();
     try {
+      if (failure != null) {
+        throw failure;
+      }
 
-      out.writeInt(4 + data.length);
-      out.writeInt(tag);
-      out.write(data);
-      out.flush();
+      append(tag, data, offset, length);
+      long mine = batch;
+
+      while (writtenBatch < mine) {
+        if (failure != null) {
+          throw failure;
+        }
+        if (flushing) {
+          written.awaitUninterruptibly();
+        } else {
+          flush();
+        }
+      }
     } finally {
       writeLock.unlock();
     }
   }
 
+  private void append(int tag, byte[] data, int offset, int length) {
+    int needed = pendingLength + 8 + length;
+    if (needed > pending.length) {
+      pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+    }
+    putInt(pending, pendingLength, 4 + length);
+    putInt(pending, pendingLength + 4, tag);
+    System.arraycopy(data, offset, pending, pendingLength + 8, length);
+    pendingLength = needed;
+  }
+
+  private static void putInt(byte[] buf, int pos, int value) {
+    buf[pos] = (byte) (value >>> 24);
+    buf[pos + 1] = (byte) (value >>> 16);
+    buf[pos + 2] = (byte) (value >>> 8);
+    buf[pos + 3] = (byte) value;
+  }
+
+  private void flush() throws IOException {
+    byte[] buf = pending;
+    int length = pendingLength;
+    long flushed = batch++;
+    pending = spare.length > 4 * BUFFER_SIZE ? new byte[BUFFER_SIZE] : spare;
+    pendingLength = 0;
+    flushing = true;
+
+    writeLock.unlock();
+    try {
+      out.write(buf, 0, length);
+    } catch (IOException e) {
+      writeLock.lock();
+      failure = e;
+      flushing = false;
+      written.signalAll();
+      throw e;
+    }
+    writeLock.lock();
+
+    spare = buf;
+    writtenBatch = flushed;
+    flushing = false;
+    written.signalAll();
+  }
+
   public Frame receive() throws IOException {
     readLock.lock();
     try {
       int length = in.readInt();
       int tag = in.readInt();
-      byte[] data = new byte[length - 4];
-      in.readFully(data);
-      return new Frame(tag, data);
+      byte[] data = BufferPool.SHARED.acquire(length - 4);
+      in.readFully(data, 0, length - 4);
+      return new Frame(tag, data, length - 4);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  public void receive(FrameBuffer frame) throws IOException {
+    readLock.lock();
+    try {
+      int length = in.readInt() - 4;
+      frame.tag = in.readInt();
+      if (frame.data.length < length) {
+        BufferPool.SHARED.release(frame.data);
+        frame.data = BufferPool.SHARED.acquire(Math.max(length, frame.data.length * 2));
+      }
+      in.readFully(frame.data, 0, length);
+      frame.length = length;
     } finally {
       readLock.unlock();
     }
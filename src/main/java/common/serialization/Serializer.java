@@ -20,6 +20,29 @@ public class Serializer {
     return new DataInputStream(new ByteArrayInputStream(data));
   }
 
+  public static DataInputStream createInput(byte[] data, int offset, int length) {
+    return new DataInputStream(new ByteArrayInputStream(data, offset, length));
+  }
+
+  public static int getInt(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 24)
+        | ((data[pos + 1] & 0xFF) << 16)
+        | ((data[pos + 2] & 0xFF) << 8)
+        | (data[pos + 3] & 0xFF);
+  }
+
+  public static long getLong(byte[] data, int pos) {
+    return ((long) getInt(data, pos) << 32) | (getInt(data, pos + 4) & 0xFFFFFFFFL);
+  }
+
+  public static double getDouble(byte[] data, int pos) {
+    return Double.longBitsToDouble(getLong(data, pos));
+  }
+
+  public static int getUnsignedShort(byte[] data, int pos) {
+    return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+  }
+
   public static void writeString(DataOutputStream out, String s) throws IOException {
     if (s == null) {
       out.writeBoolean(false);
@@ -1,19 +1,31 @@
 package server;
 
 import common.Logger;
+import common.model.Aggregation;
 import common.model.Event;
 import common.model.User;
+import common.protocol.BufferPool;
 import common.protocol.Protocol;
 import common.protocol.TaggedConnection;
 import common.protocol.TaggedConnection.Frame;
+import common.protocol.TaggedConnection.FrameBuffer;
 import common.serialization.Serializer;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import server.data.TimeSeriesDB;
 import server.data.UserManager;
 
@@ -21,27 +33,99 @@ public class ClientHandler implements Runnable {
 
   private static final int WORKERS_PER_CONNECTION = 3;
 
+  private static final int WATERMARK_EVERY = 1024;
+  private static final long WATERMARK_INTERVAL_MS = 50;
+
+  private static final byte[] REPLY_OK = {0, 0, 0, Protocol.OK};
+  private static final byte[] REPLY_ERROR = {0, 0, 0, Protocol.ERROR};
+  private static final byte[] REPLY_UNKNOWN_PRODUCT = {0, 0, 0, Protocol.ERROR_UNKNOWN_PRODUCT};
+
   private final TaggedConnection connection;
+  private final Responder responder;
+  private final Executor waitPool;
+  private final ThreadFactory threads;
+  private final boolean threadPerRequest;
   private final UserManager userManager;
   private final TimeSeriesDB database;
+  private final ProductSymbols symbols;
 
   private volatile User authenticatedUser;
 
+  private volatile Thread watermarkThread;
+  private final AtomicLong processedEvents = new AtomicLong();
+  private final AtomicLong rejectedEvents = new AtomicLong();
+  private long watermark;
+  private BitSet completedAhead = new BitSet();
+  private long sentWatermark;
+  private final Lock watermarkLock = new ReentrantLock();
+
   public ClientHandler(
       TaggedConnection connection, UserManager userManager, TimeSeriesDB database) {
+    this(connection, userManager, database, Thread::new, false);
+  }
+
+  public ClientHandler(
+      TaggedConnection connection,
+      UserManager userManager,
+      TimeSeriesDB database,
+      ThreadFactory threads,
+      boolean threadPerRequest) {
+    this(
+        connection,
+        new Responder() {
+          @Override
+          public void send(int tag, byte[] data, int offset, int length) throws IOException {
+            connection.send(tag, data, offset, length);
+          }
+
+          @Override
+          public SocketAddress remoteAddress() {
+            return connection.getSocket().getRemoteSocketAddress();
+          }
+        },
+        null,
+        threads,
+        threadPerRequest,
+        userManager,
+        database);
+  }
+
+  public ClientHandler(
+      Responder responder, Executor waitPool, UserManager userManager, TimeSeriesDB database) {
+    this(null, responder, waitPool, Thread::new, false, userManager, database);
+  }
+
+  private ClientHandler(
+      TaggedConnection connection,
+      Responder responder,
+      Executor waitPool,
+      ThreadFactory threads,
+      boolean threadPerRequest,
+      UserManager userManager,
+      TimeSeriesDB database) {
     this.connection = connection;
+    this.responder = responder;
+    this.waitPool = waitPool;
+    this.threads = threads;
+    this.threadPerRequest = threadPerRequest;
     this.userManager = userManager;
     this.database = database;
+    this.symbols = new ProductSymbols(database.getProducts());
     this.authenticatedUser = null;
   }
 
   @Override
   public void run() {
     try (connection) {
+      if (threadPerRequest) {
+        dispatchLoop();
+        return;
+      }
+
       Thread[] workers = new Thread[WORKERS_PER_CONNECTION];
 
       for (int i = 0; i < WORKERS_PER_CONNECTION; i++) {
-        workers[i] = new Thread(this::workerLoop);
+        workers[i] = threads.newThread(this::workerLoop);
         workers[i].start();
       }
 
@@ -62,22 +146,32 @@ public class ClientHandler implements Runnable {
         connection.close();
       } catch (IOException ignored) {
       }
-      Logger.log(
-          "ClientHandler",
-          "Cliente desconectado: "
-              + (authenticatedUser != null ? authenticatedUser.getUsername() : "não autenticado")
-              + " ("
-              + connection.getSocket().getRemoteSocketAddress()
-              + ")");
+      disconnected();
     }
   }
 
+  void disconnected() {
+    Thread ticker = watermarkThread;
+    if (ticker != null) {
+      ticker.interrupt();
+    }
+    Logger.log(
+        "ClientHandler",
+        "Cliente desconectado: "
+            + (authenticatedUser != null ? authenticatedUser.getUsername() : "não autenticado")
+            + " ("
+            + responder.remoteAddress()
+            + ")");
+  }
+
   private void workerLoop() {
+    FrameBuffer frame = new FrameBuffer(256);
+    ProductInterner products = new ProductInterner(database.getProducts());
     try {
       while (true) {
 
-        Frame frame = connection.receive();
-        processFrame(frame);
+        connection.receive(frame);
+        process(frame.tag, frame.data, frame.length, products);
       }
     } catch (EOFException e) {
 
@@ -85,15 +179,58 @@ public class ClientHandler implements Runnable {
 
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      frame.release();
+    }
+  }
+
+  private void dispatchLoop() {
+    try {
+      while (true) {
+
+        Frame frame = connection.receive();
+        threads.newThread(() -> processFrame(frame)).start();
+      }
+    } catch (IOException e) {
+
+    }
+  }
+
+  private void processFrame(Frame frame) {
+    try {
+      process(frame.tag, frame.data, frame.length, new ProductInterner(database.getProducts()));
+    } catch (IOException e) {
+      try {
+        connection.close();
+      } catch (IOException ignored) {
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      frame.release();
     }
   }
 
-  private void processFrame(Frame frame) throws IOException {
-    int tag = frame.tag;
-    byte[] data = frame.data;
+  void process(int tag, byte[] data, int length, ProductInterner products) throws IOException {
+    int msgType = length > 0 ? data[0] : -1;
+
+    if (msgType == Protocol.MSG_ADD_EVENT_BY_ID && authenticatedUser != null) {
+      handleAddEventById(tag, data, length);
+      return;
+    }
+
+    if (msgType == Protocol.MSG_ADD_EVENT && authenticatedUser != null) {
+      handleAddEvent(tag, data, length, products);
+      return;
+    }
+
+    if (msgType == Protocol.MSG_ADD_EVENTS && authenticatedUser != null) {
+      handleAddEvents(tag, data, length);
+      return;
+    }
 
-    DataInputStream in = Serializer.createInput(data);
-    int msgType = in.readByte();
+    DataInputStream in = Serializer.createInput(data, 0, length);
+    in.readByte();
 
     if (msgType == Protocol.MSG_REGISTER) {
       handleRegister(tag, in);
@@ -111,23 +248,43 @@ public class ClientHandler implements Runnable {
     }
 
     switch (msgType) {
-      case Protocol.MSG_ADD_EVENT:
-        handleAddEvent(tag, in);
-        break;
       case Protocol.MSG_NEW_DAY:
         handleNewDay(tag);
         break;
+      case Protocol.MSG_DEFINE_PRODUCT:
+        handleDefineProduct(tag, in);
+        break;
+      case Protocol.MSG_ACK_MODE:
+        handleAckMode(tag, in);
+        break;
       case Protocol.MSG_QUANTITY:
-        handleQuantity(tag, in);
+      case Protocol.MSG_QUANTITY | Protocol.FLAG_INCLUDE_TODAY:
+        handleQuantity(tag, in.readUTF(), in, includesToday(msgType));
         break;
       case Protocol.MSG_VOLUME:
-        handleVolume(tag, in);
+      case Protocol.MSG_VOLUME | Protocol.FLAG_INCLUDE_TODAY:
+        handleVolume(tag, in.readUTF(), in, includesToday(msgType));
         break;
       case Protocol.MSG_AVG_PRICE:
-        handleAveragePrice(tag, in);
+      case Protocol.MSG_AVG_PRICE | Protocol.FLAG_INCLUDE_TODAY:
+        handleAveragePrice(tag, in.readUTF(), in, includesToday(msgType));
         break;
       case Protocol.MSG_MAX_PRICE:
-        handleMaxPrice(tag, in);
+      case Protocol.MSG_MAX_PRICE | Protocol.FLAG_INCLUDE_TODAY:
+        handleMaxPrice(tag, in.readUTF(), in, includesToday(msgType));
+        break;
+      case Protocol.MSG_QUANTITY_BY_ID:
+      case Protocol.MSG_VOLUME_BY_ID:
+      case Protocol.MSG_AVG_PRICE_BY_ID:
+      case Protocol.MSG_MAX_PRICE_BY_ID:
+      case Protocol.MSG_QUANTITY_BY_ID | Protocol.FLAG_INCLUDE_TODAY:
+      case Protocol.MSG_VOLUME_BY_ID | Protocol.FLAG_INCLUDE_TODAY:
+      case Protocol.MSG_AVG_PRICE_BY_ID | Protocol.FLAG_INCLUDE_TODAY:
+      case Protocol.MSG_MAX_PRICE_BY_ID | Protocol.FLAG_INCLUDE_TODAY:
+        handleAggregationById(tag, msgType, in);
+        break;
+      case Protocol.MSG_MULTI_QUERY:
+        handleMultiQuery(tag, in);
         break;
       case Protocol.MSG_FILTER_EVENTS:
         handleFilterEvents(tag, in);
@@ -149,18 +306,17 @@ public class ClientHandler implements Runnable {
 
     boolean success = userManager.register(username, password);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-
-    if (success) {
-      out.writeInt(Protocol.OK);
-      out.writeUTF("Registo efetuado com sucesso");
-    } else {
-      out.writeInt(Protocol.ERROR_USER_EXISTS);
-      out.writeUTF("Utilizador já existe");
-    }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    reply(
+        tag,
+        out -> {
+          if (success) {
+            out.writeInt(Protocol.OK);
+            out.writeUTF("Registo efetuado com sucesso");
+          } else {
+            out.writeInt(Protocol.ERROR_USER_EXISTS);
+            out.writeUTF("Utilizador já existe");
+          }
+        });
   }
 
   private void handleLogin(int tag, DataInputStream in) throws IOException {
@@ -169,206 +325,570 @@ public class ClientHandler implements Runnable {
 
     User user = userManager.authenticate(username, password);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-
     if (user != null) {
       authenticatedUser = user;
-      out.writeInt(Protocol.OK);
-      out.writeUTF("Login efetuado com sucesso");
       Logger.log("ClientHandler", "Utilizador autenticado: " + username);
-    } else {
-      out.writeInt(Protocol.ERROR_AUTH);
-      out.writeUTF("Credenciais inválidas");
     }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    reply(
+        tag,
+        out -> {
+          if (user != null) {
+            out.writeInt(Protocol.OK);
+            out.writeUTF("Login efetuado com sucesso");
+          } else {
+            out.writeInt(Protocol.ERROR_AUTH);
+            out.writeUTF("Credenciais inválidas");
+          }
+        });
   }
 
-  private void handleAddEvent(int tag, DataInputStream in) throws IOException {
-    String product = in.readUTF();
-    int quantity = in.readInt();
-    double price = in.readDouble();
-
-    boolean success = database.addEvent(product, quantity, price);
+  private void handleAddEvent(int tag, byte[] data, int length, ProductInterner products)
+      throws IOException {
+    int productLength = Serializer.getUnsignedShort(data, 1);
+    if (3 + productLength + 12 > length) {
+      throw new EOFException("Mensagem de evento truncada");
+    }
+    int product = products.intern(data, 3, productLength);
+    int pos = 3 + productLength;
+    int quantity = Serializer.getInt(data, pos);
+    double price = Serializer.getDouble(data, pos + 4);
+
+    boolean success;
+    if (product >= 0) {
+      success = database.addEvent(product, quantity, price);
+    } else {
+      String name = Serializer.createInput(data, 1, productLength + 2).readUTF();
+      success = database.addEvent(name, quantity, price);
+    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    acknowledge(tag, success ? REPLY_OK : REPLY_ERROR);
+  }
 
-    if (success) {
-      out.writeInt(Protocol.OK);
+  private void handleAddEventById(int tag, byte[] data, int length) throws IOException {
+    if (1 + 16 > length) {
+      throw new EOFException("Mensagem de evento truncada");
+    }
+    int symbol = Serializer.getInt(data, 1);
+    int quantity = Serializer.getInt(data, 5);
+    double price = Serializer.getDouble(data, 9);
+
+    int product = symbols.resolve(symbol);
+    byte[] reply;
+    if (product >= 0) {
+      reply = database.addEvent(product, quantity, price) ? REPLY_OK : REPLY_ERROR;
     } else {
-      out.writeInt(Protocol.ERROR);
+      String name = symbols.name(symbol);
+      if (name == null) {
+        reply = REPLY_UNKNOWN_PRODUCT;
+      } else {
+        reply = database.addEvent(name, quantity, price) ? REPLY_OK : REPLY_ERROR;
+      }
     }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    acknowledge(tag, reply);
   }
 
-  private void handleNewDay(int tag) throws IOException {
-    database.newDay();
-    int newDayNumber = database.getCurrentDayNumber();
+  private void acknowledge(int tag, byte[] reply) throws IOException {
+    if (tag >= 0) {
+      responder.send(tag, reply, 0, reply.length);
+      return;
+    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeInt(Protocol.OK);
-    out.writeInt(newDayNumber);
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    if (reply != REPLY_OK) {
+      rejectedEvents.incrementAndGet();
+      reply(
+          Protocol.NOTIFY_TAG,
+          out -> {
+            out.writeInt(Protocol.NOTIFY_REJECTED);
+            out.writeInt(tag);
+            out.writeInt(reply[3]);
+          });
+    }
+    markProcessed(tag);
+    if (processedEvents.incrementAndGet() % WATERMARK_EVERY == 0) {
+      sendWatermark();
+    }
+  }
 
-    Logger.log("ClientHandler", "Novo dia iniciado: " + newDayNumber);
+  private void markProcessed(int tag) {
+    watermarkLock.lock();
+    try {
+      int offset = (tag - (int) watermark) & Integer.MAX_VALUE;
+      if (offset > Integer.MAX_VALUE / 2) {
+        return;
+      }
+      completedAhead.set(offset);
+      int advance = completedAhead.nextClearBit(0);
+      if (advance > 0) {
+        completedAhead = completedAhead.get(advance, Math.max(advance, completedAhead.length()));
+        watermark += advance;
+      }
+    } finally {
+      watermarkLock.unlock();
+    }
   }
 
-  private void handleQuantity(int tag, DataInputStream in) throws IOException {
-    String product = in.readUTF();
-    int d = in.readInt();
+  private void sendWatermark() throws IOException {
+    watermarkLock.lock();
+    try {
+      long acknowledged = watermark;
+      if (acknowledged == sentWatermark) {
+        return;
+      }
+      long rejected = rejectedEvents.get();
+      reply(
+          Protocol.NOTIFY_TAG,
+          out -> {
+            out.writeInt(Protocol.NOTIFY_WATERMARK);
+            out.writeLong(acknowledged);
+            out.writeLong(rejected);
+          });
+      sentWatermark = acknowledged;
+    } finally {
+      watermarkLock.unlock();
+    }
+  }
+
+  private void watermarkLoop() {
+    try {
+      while (true) {
+        Thread.sleep(WATERMARK_INTERVAL_MS);
+        sendWatermark();
+      }
+    } catch (InterruptedException | IOException e) {
 
-    int quantity = database.getQuantity(product, d);
+    }
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+  private void handleAckMode(int tag, DataInputStream in) throws IOException {
+    int mode = in.readByte();
+    if (mode != Protocol.ACK_EACH && mode != Protocol.ACK_WATERMARK) {
+      sendError(tag, Protocol.ERROR, "Modo de confirmação desconhecido: " + mode);
+      return;
+    }
 
-    if (quantity >= 0) {
-      out.writeInt(Protocol.OK);
-      out.writeInt(quantity);
-    } else {
-      out.writeInt(Protocol.ERROR_INVALID_DAY);
-      out.writeInt(0);
+    long acknowledged;
+    watermarkLock.lock();
+    try {
+      if (mode == Protocol.ACK_WATERMARK && watermarkThread == null) {
+        watermarkThread = threads.newThread(this::watermarkLoop);
+        watermarkThread.setName("watermarks");
+        watermarkThread.setDaemon(true);
+        watermarkThread.start();
+      }
+      acknowledged = watermark;
+    } finally {
+      watermarkLock.unlock();
     }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+
+    reply(
+        tag,
+        out -> {
+          out.writeInt(Protocol.OK);
+          out.writeLong(acknowledged);
+        });
   }
 
-  private void handleVolume(int tag, DataInputStream in) throws IOException {
-    String product = in.readUTF();
-    int d = in.readInt();
+  private void handleAddEvents(int tag, byte[] data, int length) throws IOException {
+    if (5 > length) {
+      throw new EOFException("Mensagem de eventos truncada");
+    }
+    int count = Serializer.getInt(data, 1);
+    if (count < 0 || count > Protocol.MAX_EVENTS_PER_BATCH) {
+      sendBatchReply(tag, Protocol.ERROR, 0);
+      return;
+    }
+    if (5 + count * 16 > length) {
+      throw new EOFException("Mensagem de eventos truncada");
+    }
 
-    double volume = database.getVolume(product, d);
+    int[] products = new int[count];
+    int[] quantities = new int[count];
+    double[] prices = new double[count];
+    int pos = 5;
+    for (int i = 0; i < count; i++, pos += 4) {
+      products[i] = Serializer.getInt(data, pos);
+      if (symbols.name(products[i]) == null) {
+        sendBatchReply(tag, Protocol.ERROR_UNKNOWN_PRODUCT, 0);
+        return;
+      }
+    }
+    for (int i = 0; i < count; i++, pos += 4) {
+      quantities[i] = Serializer.getInt(data, pos);
+    }
+    for (int i = 0; i < count; i++, pos += 8) {
+      prices[i] = Serializer.getDouble(data, pos);
+    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    for (int i = 0; i < count; i++) {
+      int symbol = products[i];
+      products[i] = symbols.resolve(symbol);
+      if (products[i] < 0 && TimeSeriesDB.isValid(quantities[i], prices[i])) {
+        try {
+          products[i] = symbols.create(symbol);
+        } catch (IOException e) {
+          Logger.error("ClientHandler", "Erro ao registar produto: " + e.getMessage());
+          sendBatchReply(tag, Protocol.ERROR, 0);
+          return;
+        }
+      }
+    }
 
-    if (volume >= 0) {
-      out.writeInt(Protocol.OK);
-      out.writeDouble(volume);
+    BitSet rejected = new BitSet();
+    int accepted = database.addEvents(products, quantities, prices, count, rejected);
+    if (accepted < 0) {
+      sendBatchReply(tag, Protocol.ERROR, 0);
     } else {
-      out.writeInt(Protocol.ERROR_INVALID_DAY);
-      out.writeDouble(0);
+      sendBatchReply(tag, Protocol.OK, accepted, rejected);
     }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
   }
 
-  private void handleAveragePrice(int tag, DataInputStream in) throws IOException {
+  private void sendBatchReply(int tag, int code, int accepted) throws IOException {
+    sendBatchReply(tag, code, accepted, new BitSet());
+  }
+
+  private void sendBatchReply(int tag, int code, int accepted, BitSet rejected)
+      throws IOException {
+    long[] words = rejected.toLongArray();
+    reply(
+        tag,
+        out -> {
+          out.writeInt(code);
+          out.writeInt(accepted);
+          out.writeInt(words.length);
+          for (long word : words) {
+            out.writeLong(word);
+          }
+        });
+  }
+
+  private void handleDefineProduct(int tag, DataInputStream in) throws IOException {
     String product = in.readUTF();
-    int d = in.readInt();
 
-    double avg = database.getAveragePrice(product, d);
+    int defined = symbols.define(product);
+    reply(
+        tag,
+        out -> {
+          out.writeInt(defined >= 0 ? Protocol.OK : Protocol.ERROR);
+          out.writeInt(defined);
+        });
+  }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+  private void handleAggregationById(int tag, int msgType, DataInputStream in)
+      throws IOException {
+    String product = symbols.name(in.readInt());
+    if (product == null) {
+      sendError(tag, Protocol.ERROR_UNKNOWN_PRODUCT, "Produto desconhecido");
+      return;
+    }
 
-    if (avg >= 0) {
-      out.writeInt(Protocol.OK);
-      out.writeDouble(avg);
-    } else {
-      out.writeInt(Protocol.ERROR_INVALID_DAY);
-      out.writeDouble(0);
+    boolean includeToday = includesToday(msgType);
+    switch (msgType & ~Protocol.FLAG_INCLUDE_TODAY) {
+      case Protocol.MSG_QUANTITY_BY_ID:
+        handleQuantity(tag, product, in, includeToday);
+        break;
+      case Protocol.MSG_VOLUME_BY_ID:
+        handleVolume(tag, product, in, includeToday);
+        break;
+      case Protocol.MSG_AVG_PRICE_BY_ID:
+        handleAveragePrice(tag, product, in, includeToday);
+        break;
+      default:
+        handleMaxPrice(tag, product, in, includeToday);
     }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
   }
 
-  private void handleMaxPrice(int tag, DataInputStream in) throws IOException {
-    String product = in.readUTF();
-    int d = in.readInt();
-
-    double max = database.getMaxPrice(product, d);
+  private void handleNewDay(int tag) throws IOException {
+    database.newDay();
+    int newDayNumber = database.getCurrentDayNumber();
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    reply(
+        tag,
+        out -> {
+          out.writeInt(Protocol.OK);
+          out.writeInt(newDayNumber);
+        });
 
-    if (max >= -1) {
-      out.writeInt(Protocol.OK);
-      out.writeDouble(max);
-    } else {
-      out.writeInt(Protocol.ERROR_INVALID_DAY);
-      out.writeDouble(0);
-    }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    Logger.log("ClientHandler", "Novo dia iniciado: " + newDayNumber);
   }
 
-  private void handleFilterEvents(int tag, DataInputStream in) throws IOException {
-    int daysAgo = in.readInt();
-    Set<String> products = Serializer.readStringSet(in);
+  private void handleQuantity(int tag, String product, DataInputStream in, boolean includeToday)
+      throws IOException {
+    int d = in.readInt();
+
+    database
+        .aggregateAsync(product, d, includeToday)
+        .whenComplete(
+            (agg, ex) ->
+                respond(
+                    tag,
+                    out -> {
+                      if (ex != null) {
+                        out.writeInt(Protocol.ERROR);
+                        out.writeInt(0);
+                      } else if (agg != null) {
+                        out.writeInt(Protocol.OK);
+                        out.writeInt(agg.getTotalQuantity());
+                      } else {
+                        out.writeInt(Protocol.ERROR_INVALID_DAY);
+                        out.writeInt(0);
+                      }
+                    }));
+  }
 
-    List<Event> events = database.filterEvents(daysAgo, products);
+  private void handleVolume(int tag, String product, DataInputStream in, boolean includeToday)
+      throws IOException {
+    int d = in.readInt();
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    database
+        .aggregateAsync(product, d, includeToday)
+        .whenComplete(
+            (agg, ex) ->
+                respond(
+                    tag,
+                    out -> {
+                      if (ex != null) {
+                        out.writeInt(Protocol.ERROR);
+                        out.writeDouble(0);
+                      } else if (agg != null) {
+                        out.writeInt(Protocol.OK);
+                        out.writeDouble(agg.getTotalVolume());
+                      } else {
+                        out.writeInt(Protocol.ERROR_INVALID_DAY);
+                        out.writeDouble(0);
+                      }
+                    }));
+  }
 
-    if (events != null) {
-      out.writeInt(Protocol.OK);
+  private void handleAveragePrice(
+      int tag, String product, DataInputStream in, boolean includeToday) throws IOException {
+    int d = in.readInt();
 
-      serializeEventsCompact(out, events);
-    } else {
-      out.writeInt(Protocol.ERROR_INVALID_DAY);
-      out.writeInt(0);
-    }
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    database
+        .aggregateAsync(product, d, includeToday)
+        .whenComplete(
+            (agg, ex) ->
+                respond(
+                    tag,
+                    out -> {
+                      if (ex != null) {
+                        out.writeInt(Protocol.ERROR);
+                        out.writeDouble(0);
+                      } else if (agg != null) {
+                        out.writeInt(Protocol.OK);
+                        out.writeDouble(agg.getAveragePrice());
+                      } else {
+                        out.writeInt(Protocol.ERROR_INVALID_DAY);
+                        out.writeDouble(0);
+                      }
+                    }));
   }
 
-  private void handleSimultaneous(int tag, DataInputStream in) throws IOException {
-    String p1 = in.readUTF();
-    String p2 = in.readUTF();
+  private void handleMaxPrice(int tag, String product, DataInputStream in, boolean includeToday)
+      throws IOException {
+    int d = in.readInt();
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    database
+        .aggregateAsync(product, d, includeToday)
+        .whenComplete(
+            (agg, ex) ->
+                respond(
+                    tag,
+                    out -> {
+                      if (ex != null) {
+                        out.writeInt(Protocol.ERROR);
+                        out.writeDouble(0);
+                      } else if (agg != null) {
+                        out.writeInt(Protocol.OK);
+                        out.writeDouble(agg.getMaxPrice());
+                      } else {
+                        out.writeInt(Protocol.ERROR_INVALID_DAY);
+                        out.writeDouble(0);
+                      }
+                    }));
+  }
 
-    try {
+  private void handleMultiQuery(int tag, DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > Protocol.MAX_QUERIES_PER_BATCH) {
+      sendError(tag, Protocol.ERROR, "Número de consultas inválido: " + count);
+      return;
+    }
 
-      boolean result = database.waitForSimultaneous(p1, p2);
+    int[] kinds = new int[count];
+    List<CompletableFuture<Aggregation>> results = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int kind = in.readByte();
+      String product;
+      if (kind >= Protocol.MSG_QUANTITY_BY_ID && kind <= Protocol.MSG_MAX_PRICE_BY_ID) {
+        product = symbols.name(in.readInt());
+        kind -= Protocol.MSG_QUANTITY_BY_ID - Protocol.MSG_QUANTITY;
+      } else if (kind >= Protocol.MSG_QUANTITY && kind <= Protocol.MSG_MAX_PRICE) {
+        product = in.readUTF();
+      } else {
+        sendError(tag, Protocol.ERROR, "Tipo de consulta desconhecido: " + kind);
+        return;
+      }
+      int d = in.readInt();
+      boolean includeToday = in.readBoolean();
 
-      out.writeInt(Protocol.OK);
-      out.writeBoolean(result);
+      kinds[i] = kind;
+      results.add(product != null ? database.aggregateAsync(product, d, includeToday) : null);
+    }
 
-    } catch (InterruptedException e) {
+    CompletableFuture.allOf(
+            results.stream().filter(Objects::nonNull).toArray(CompletableFuture<?>[]::new))
+        .whenComplete(
+            (done, failure) ->
+                respond(
+                    tag,
+                    out -> {
+                      out.writeInt(Protocol.OK);
+                      out.writeInt(count);
+                      for (int i = 0; i < count; i++) {
+                        CompletableFuture<Aggregation> result = results.get(i);
+                        if (result == null) {
+                          out.writeInt(Protocol.ERROR_UNKNOWN_PRODUCT);
+                          writeAggregationValue(out, kinds[i], null);
+                        } else if (result.isCompletedExceptionally()) {
+                          out.writeInt(Protocol.ERROR);
+                          writeAggregationValue(out, kinds[i], null);
+                        } else {
+                          Aggregation agg = result.join();
+                          out.writeInt(agg != null ? Protocol.OK : Protocol.ERROR_INVALID_DAY);
+                          writeAggregationValue(out, kinds[i], agg);
+                        }
+                      }
+                    }));
+  }
 
-      out.writeInt(Protocol.ERROR);
-      out.writeBoolean(false);
+  private static void writeAggregationValue(DataOutputStream out, int kind, Aggregation agg)
+      throws IOException {
+    switch (kind) {
+      case Protocol.MSG_QUANTITY:
+        out.writeInt(agg != null ? agg.getTotalQuantity() : 0);
+        break;
+      case Protocol.MSG_VOLUME:
+        out.writeDouble(agg != null ? agg.getTotalVolume() : 0);
+        break;
+      case Protocol.MSG_AVG_PRICE:
+        out.writeDouble(agg != null ? agg.getAveragePrice() : 0);
+        break;
+      default:
+        out.writeDouble(agg != null ? agg.getMaxPrice() : 0);
     }
+  }
 
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+  private static boolean includesToday(int msgType) {
+    return (msgType & Protocol.FLAG_INCLUDE_TODAY) != 0;
   }
 
-  private void handleConsecutive(int tag, DataInputStream in) throws IOException {
-    int n = in.readInt();
+  private void handleFilterEvents(int tag, DataInputStream in) throws IOException {
+    int daysAgo = in.readInt();
+    Set<String> products = Serializer.readStringSet(in);
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
+    database
+        .filterEventsAsync(daysAgo, products)
+        .whenComplete(
+            (events, ex) ->
+                respond(
+                    tag,
+                    out -> {
+                      if (ex != null) {
+                        out.writeInt(Protocol.ERROR);
+                        out.writeInt(0);
+                      } else if (events != null) {
+                        out.writeInt(Protocol.OK);
+
+                        serializeEventsCompact(out, events);
+                      } else {
+                        out.writeInt(Protocol.ERROR_INVALID_DAY);
+                        out.writeInt(0);
+                      }
+                    }));
+  }
 
-    try {
+  private void handleSimultaneous(int tag, DataInputStream in) throws IOException {
+    String p1 = in.readUTF();
+    String p2 = in.readUTF();
+
+    blocking(
+        () -> {
+          int code;
+          boolean result;
+          try {
+
+            result = database.waitForSimultaneous(p1, p2);
+            code = Protocol.OK;
+
+          } catch (InterruptedException e) {
+
+            result = false;
+            code = Protocol.ERROR;
+          }
+
+          int replyCode = code;
+          boolean replyResult = result;
+          reply(
+              tag,
+              out -> {
+                out.writeInt(replyCode);
+                out.writeBoolean(replyResult);
+              });
+        });
+  }
 
-      String product = database.waitForConsecutive(n);
+  private void handleConsecutive(int tag, DataInputStream in) throws IOException {
+    int n = in.readInt();
 
-      out.writeInt(Protocol.OK);
-      if (product != null) {
-        out.writeBoolean(true);
-        out.writeUTF(product);
-      } else {
-        out.writeBoolean(false);
-      }
+    blocking(
+        () -> {
+          int code;
+          String product;
+          try {
+
+            product = database.waitForConsecutive(n);
+            code = Protocol.OK;
+
+          } catch (InterruptedException e) {
+
+            product = null;
+            code = Protocol.ERROR;
+          }
+
+          int replyCode = code;
+          String replyProduct = product;
+          reply(
+              tag,
+              out -> {
+                out.writeInt(replyCode);
+                if (replyProduct != null) {
+                  out.writeBoolean(true);
+                  out.writeUTF(replyProduct);
+                } else {
+                  out.writeBoolean(false);
+                }
+              });
+        });
+  }
 
-    } catch (InterruptedException e) {
+  private interface BlockingTask {
+    void run() throws IOException;
+  }
 
-      out.writeInt(Protocol.ERROR);
-      out.writeBoolean(false);
+  private void blocking(BlockingTask task) throws IOException {
+    if (waitPool == null) {
+      task.run();
+      return;
     }
 
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    waitPool.execute(
+        () -> {
+          try {
+            task.run();
+          } catch (IOException e) {
+            Logger.error("ClientHandler", "Erro ao enviar resposta: " + e.getMessage());
+          }
+        });
   }
 
   private void serializeEventsCompact(DataOutputStream out, List<Event> events) throws IOException {
@@ -397,12 +917,31 @@ public class ClientHandler implements Runnable {
     }
   }
 
+  private interface ResponseWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private void reply(int tag, ResponseWriter writer) throws IOException {
+    try (BufferPool.Output buffer = BufferPool.SHARED.output()) {
+      writer.write(buffer.data());
+      responder.send(tag, buffer);
+    }
+  }
+
+  private void respond(int tag, ResponseWriter writer) {
+    try {
+      reply(tag, writer);
+    } catch (IOException e) {
+      Logger.error("ClientHandler", "Erro ao enviar resposta: " + e.getMessage());
+    }
+  }
+
   private void sendError(int tag, int errorCode, String message) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream out = Serializer.createOutput(baos);
-    out.writeInt(errorCode);
-    out.writeUTF(message);
-    out.flush();
-    connection.send(tag, baos.toByteArray());
+    reply(
+        tag,
+        out -> {
+          out.writeInt(errorCode);
+          out.writeUTF(message);
+        });
   }
 }
@@ -0,0 +1,424 @@
+package server;
+
+import common.Logger;
+import common.protocol.BufferPool;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import server.data.TimeSeriesDB;
+import server.data.UserManager;
+
+class NioServer {
+
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+  static final int DEFAULT_EVENT_LOOPS = Math.max(1, CORES / 2);
+  static final int DEFAULT_WORKERS = Math.max(8, 4 * CORES);
+
+  private static final int READ_BUFFER_SIZE = 4 * 1024;
+  private static final int MAX_IDLE_READ_BUFFER = 64 * 1024;
+  private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_PENDING_OUTPUT = 8 * 1024 * 1024;
+  private static final int MAX_QUEUED_REQUESTS = 64;
+
+  private final UserManager userManager;
+  private final TimeSeriesDB database;
+
+  private final EventLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private final ExecutorService workers;
+  private final ExecutorService waitPool;
+  private final ThreadLocal<ProductInterner> interners;
+
+  NioServer(
+      int eventLoops,
+      int workerThreads,
+      ThreadFactory waitThreads,
+      UserManager userManager,
+      TimeSeriesDB database)
+      throws IOException {
+    this.userManager = userManager;
+    this.database = database;
+    this.interners = ThreadLocal.withInitial(() -> new ProductInterner(database.getProducts()));
+
+    AtomicInteger workerCount = new AtomicInteger();
+    this.workers =
+        Executors.newFixedThreadPool(
+            workerThreads,
+            r -> {
+              Thread t = new Thread(r, "request-worker-" + workerCount.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+
+    AtomicInteger waitCount = new AtomicInteger();
+    this.waitPool =
+        Executors.newCachedThreadPool(
+            waitThreads != null
+                ? waitThreads
+                : r -> {
+                  Thread t = new Thread(r, "blocking-wait-" + waitCount.incrementAndGet());
+                  t.setDaemon(true);
+                  return t;
+                });
+
+    this.loops = new EventLoop[eventLoops];
+    for (int i = 0; i < eventLoops; i++) {
+      loops[i] = new EventLoop(i);
+    }
+  }
+
+  void accept(SocketChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+  }
+
+  private class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int index) throws IOException {
+      this.selector = Selector.open();
+      Thread thread = new Thread(this, "event-loop-" + index);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void register(SocketChannel channel) {
+      Connection connection = new Connection(this, channel);
+      registrations.add(connection);
+      selector.wakeup();
+    }
+
+    void resume(Connection connection) {
+      resumed.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+
+          Connection pending;
+          while ((pending = registrations.poll()) != null) {
+            try {
+              pending.key = pending.channel.register(selector, SelectionKey.OP_READ, pending);
+            } catch (ClosedChannelException e) {
+              pending.close();
+            }
+          }
+
+          while ((pending = resumed.poll()) != null) {
+            try {
+              pending.resume();
+            } catch (IOException | CancelledKeyException e) {
+              pending.close();
+            }
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isWritable()) {
+                connection.flush();
+              }
+              if (key.isReadable()) {
+                connection.read();
+              }
+            } catch (IOException | CancelledKeyException e) {
+              connection.close();
+            }
+          }
+        } catch (IOException e) {
+          Logger.error("NioServer", "Erro no ciclo de eventos: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private class Connection implements Responder {
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private final ClientHandler handler;
+    private volatile SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+
+    private final Lock writeLock = new ReentrantLock();
+    private byte[] pending = BufferPool.SHARED.acquire(READ_BUFFER_SIZE);
+    private int pendingLength;
+    private byte[] writing;
+    private ByteBuffer inFlight;
+    private boolean writeInterest;
+    private boolean readPaused;
+    private boolean resumeScheduled;
+    private boolean closed;
+
+    Connection(EventLoop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+      this.remoteAddress = channel.socket().getRemoteSocketAddress();
+      this.handler = new ClientHandler(this, waitPool, userManager, database);
+    }
+
+    void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      drainFrames();
+    }
+
+    void resume() throws IOException {
+      writeLock.lock();
+      try {
+        resumeScheduled = false;
+        readPaused = false;
+      } finally {
+        writeLock.unlock();
+      }
+
+      drainFrames();
+
+      writeLock.lock();
+      try {
+        updateInterest();
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    private void drainFrames() throws IOException {
+      readBuffer.flip();
+      while (readBuffer.remaining() >= 8 && !pauseIfBackedUp()) {
+        int length = frameLength(readBuffer.position());
+        if (readBuffer.remaining() < 4 + length) {
+          break;
+        }
+        readBuffer.getInt();
+        int tag = readBuffer.getInt();
+        int size = length - 4;
+        byte[] data = BufferPool.SHARED.acquire(size);
+        readBuffer.get(data, 0, size);
+        dispatch(tag, data, size);
+      }
+      readBuffer.compact();
+
+      int needed = readBuffer.position() >= 4 ? 4 + frameLength(0) : READ_BUFFER_SIZE;
+      if (needed > readBuffer.capacity()) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+      } else if (readBuffer.position() == 0 && readBuffer.capacity() > MAX_IDLE_READ_BUFFER) {
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      }
+    }
+
+    private int frameLength(int position) throws IOException {
+      int length = readBuffer.getInt(position);
+      if (length < 4 || length - 4 > MAX_FRAME_SIZE) {
+        throw new IOException("Tamanho de frame inválido: " + length);
+      }
+      return length;
+    }
+
+    private boolean pauseIfBackedUp() {
+      writeLock.lock();
+      try {
+        if (!readPaused
+            && (queuedRequests.get() >= MAX_QUEUED_REQUESTS
+                || pendingLength >= MAX_PENDING_OUTPUT)) {
+          readPaused = true;
+          updateInterest();
+        }
+        return readPaused;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    private void resumeIfDrained() {
+      if (readPaused
+          && !resumeScheduled
+          && !closed
+          && queuedRequests.get() <= MAX_QUEUED_REQUESTS / 2
+          && pendingLength <= MAX_PENDING_OUTPUT / 2) {
+        resumeScheduled = true;
+        loop.resume(this);
+      }
+    }
+
+    private void dispatch(int tag, byte[] data, int length) {
+      queuedRequests.incrementAndGet();
+      workers.execute(
+          () -> {
+            try {
+              handler.process(tag, data, length, interners.get());
+            } catch (IOException e) {
+              close();
+            } catch (RuntimeException e) {
+              Logger.error("NioServer", "Erro ao processar pedido: " + e.getMessage());
+              close();
+            } finally {
+              BufferPool.SHARED.release(data);
+              queuedRequests.decrementAndGet();
+              writeLock.lock();
+              try {
+                resumeIfDrained();
+              } finally {
+                writeLock.unlock();
+              }
+            }
+          });
+    }
+
+    @Override
+    public void send(int tag, byte[] data, int offset, int length) throws IOException {
+      writeLock.lock();
+      try {
+        if (closed) {
+          throw new IOException("Conexão fechada");
+        }
+
+        int needed = pendingLength + 8 + length;
+        if (needed > pending.length) {
+          byte[] bigger = BufferPool.SHARED.acquire(Math.max(needed, pending.length * 2));
+          System.arraycopy(pending, 0, bigger, 0, pendingLength);
+          BufferPool.SHARED.release(pending);
+          pending = bigger;
+        }
+        putInt(pending, pendingLength, 4 + length);
+        putInt(pending, pendingLength + 4, tag);
+        System.arraycopy(data, offset, pending, pendingLength + 8, length);
+        pendingLength = needed;
+
+        if (!writeInterest) {
+          write();
+        }
+        if (!readPaused && pendingLength >= MAX_PENDING_OUTPUT) {
+          readPaused = true;
+          updateInterest();
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    private void putInt(byte[] buf, int pos, int value) {
+      buf[pos] = (byte) (value >>> 24);
+      buf[pos + 1] = (byte) (value >>> 16);
+      buf[pos + 2] = (byte) (value >>> 8);
+      buf[pos + 3] = (byte) value;
+    }
+
+    void flush() throws IOException {
+      writeLock.lock();
+      try {
+        write();
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    private void write() throws IOException {
+      while (true) {
+        if (inFlight == null) {
+          if (pendingLength == 0) {
+            break;
+          }
+          byte[] next = pending;
+          pending = writing != null ? writing : BufferPool.SHARED.acquire(READ_BUFFER_SIZE);
+          writing = next;
+          inFlight = ByteBuffer.wrap(next, 0, pendingLength);
+          pendingLength = 0;
+        }
+
+        channel.write(inFlight);
+        if (inFlight.hasRemaining()) {
+          if (!writeInterest) {
+            writeInterest = true;
+            updateInterest();
+          }
+          return;
+        }
+        inFlight = null;
+      }
+
+      if (writeInterest) {
+        writeInterest = false;
+        updateInterest();
+      }
+      resumeIfDrained();
+    }
+
+    private void updateInterest() {
+      SelectionKey k = key;
+      if (k == null || !k.isValid()) {
+        return;
+      }
+      int ops =
+          (readPaused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0);
+      if (k.interestOps() != ops) {
+        k.interestOps(ops);
+        loop.selector.wakeup();
+      }
+    }
+
+    void close() {
+      writeLock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      } finally {
+        writeLock.unlock();
+      }
+
+      SelectionKey k = key;
+      if (k != null) {
+        k.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+      handler.disconnected();
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+      return remoteAddress;
+    }
+  }
+}
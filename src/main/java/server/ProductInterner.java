@@ -0,0 +1,82 @@
+package server;
+
+import common.serialization.Serializer;
+import server.data.ProductDictionary;
+import java.io.IOException;
+import java.util.Arrays;
+
+class ProductInterner {
+
+  private static final int MAX_ENTRIES = 4096;
+
+  private final ProductDictionary dictionary;
+
+  private byte[][] keys = new byte[64][];
+  private int[] values = new int[64];
+  private int size;
+
+  ProductInterner(ProductDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  int intern(byte[] data, int offset, int length) throws IOException {
+    int mask = keys.length - 1;
+    int i = hash(data, offset, length) & mask;
+    while (keys[i] != null) {
+      if (Arrays.equals(keys[i], 0, keys[i].length, data, offset, offset + length)) {
+        return values[i];
+      }
+      i = (i + 1) & mask;
+    }
+
+    int value = dictionary.find(Serializer.createInput(data, offset - 2, length + 2).readUTF());
+    if (value < 0) {
+      return -1;
+    }
+
+    if (size >= MAX_ENTRIES) {
+      clear();
+    } else if (2 * (size + 1) > keys.length) {
+      resize();
+    }
+    insert(Arrays.copyOfRange(data, offset, offset + length), value);
+    return value;
+  }
+
+  private void insert(byte[] key, int value) {
+    int mask = keys.length - 1;
+    int i = hash(key, 0, key.length) & mask;
+    while (keys[i] != null) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    size++;
+  }
+
+  private void resize() {
+    byte[][] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new byte[oldKeys.length * 2][];
+    values = new int[oldValues.length * 2];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        insert(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  private void clear() {
+    Arrays.fill(keys, null);
+    size = 0;
+  }
+
+  private static int hash(byte[] data, int offset, int length) {
+    int h = 1;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + data[i];
+    }
+    return h ^ (h >>> 16);
+  }
+}
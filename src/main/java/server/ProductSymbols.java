@@ -0,0 +1,87 @@
+package server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import server.data.ProductDictionary;
+
+class ProductSymbols {
+
+  static final int MAX_SYMBOLS = 65536;
+
+  private final ProductDictionary dictionary;
+
+  private final Map<String, Integer> defined = new HashMap<>();
+  private volatile String[] names = new String[16];
+  private volatile int[] symbols = new int[16];
+  private volatile int count;
+
+  private final Lock lock = new ReentrantLock();
+
+  ProductSymbols(ProductDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  int define(String name) {
+    lock.lock();
+    try {
+      Integer symbol = defined.get(name);
+      if (symbol != null) {
+        return symbol;
+      }
+      if (count == MAX_SYMBOLS) {
+        return -1;
+      }
+
+      String[] currentNames = names;
+      int[] current = symbols;
+      if (count == current.length) {
+        currentNames = Arrays.copyOf(currentNames, currentNames.length * 2);
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      currentNames[count] = name;
+      current[count] = dictionary.find(name);
+      names = currentNames;
+      symbols = current;
+      defined.put(name, count);
+      return count++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int resolve(int symbol) {
+    int n = count;
+    if (symbol < 0 || symbol >= n) {
+      return -1;
+    }
+    int[] current = symbols;
+    int product = current[symbol];
+    if (product < 0) {
+      product = dictionary.find(names[symbol]);
+      current[symbol] = product;
+    }
+    return product;
+  }
+
+  int create(int symbol) throws IOException {
+    String name = name(symbol);
+    if (name == null) {
+      return -1;
+    }
+    int product = dictionary.idOf(name);
+    symbols[symbol] = product;
+    return product;
+  }
+
+  String name(int symbol) {
+    int n = count;
+    if (symbol < 0 || symbol >= n) {
+      return null;
+    }
+    return names[symbol];
+  }
+}
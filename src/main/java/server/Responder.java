@@ -0,0 +1,16 @@
+package server;
+
+import common.protocol.BufferPool;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+public interface Responder {
+
+  void send(int tag, byte[] data, int offset, int length) throws IOException;
+
+  default void send(int tag, BufferPool.Output output) throws IOException {
+    send(tag, output.buffer(), 0, output.size());
+  }
+
+  SocketAddress remoteAddress();
+}
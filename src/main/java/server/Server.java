@@ -6,9 +6,14 @@ import common.protocol.TaggedConnection;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ThreadFactory;
 import server.data.TimeSeriesDB;
 import server.data.UserManager;
+import server.persistence.CheckpointStore;
+import server.persistence.FsyncPolicy;
 import server.persistence.PersistenceManager;
+import server.persistence.WriteAheadLog;
 
 public class Server {
 
@@ -17,8 +22,19 @@ public class Server {
   private int S = 10;
   private String dataPath = "data";
   private boolean recover = false;
+  private boolean walEnabled = true;
+  private long walSyncMs = WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS;
+  private int walBatch = WriteAheadLog.DEFAULT_SYNC_BATCH;
+  private long checkpointMs = 10000;
+  private FsyncPolicy fsyncPolicy = FsyncPolicy.BATCH;
+  private boolean nio = false;
+  private int eventLoops = NioServer.DEFAULT_EVENT_LOOPS;
+  private int workers = NioServer.DEFAULT_WORKERS;
+  private boolean virtualThreads = false;
+  private ThreadFactory threads = Thread::new;
 
   private ServerSocket serverSocket;
+  private NioServer nioServer;
   private boolean running;
 
   private UserManager userManager;
@@ -51,6 +67,33 @@ public class Server {
         case "--recover":
           recover = true;
           break;
+        case "--no-wal":
+          walEnabled = false;
+          break;
+        case "--wal-sync":
+          if (i + 1 < args.length) walSyncMs = Long.parseLong(args[++i]);
+          break;
+        case "--wal-batch":
+          if (i + 1 < args.length) walBatch = Integer.parseInt(args[++i]);
+          break;
+        case "--checkpoint":
+          if (i + 1 < args.length) checkpointMs = Long.parseLong(args[++i]);
+          break;
+        case "--fsync":
+          if (i + 1 < args.length) fsyncPolicy = FsyncPolicy.parse(args[++i]);
+          break;
+        case "--nio":
+          nio = true;
+          break;
+        case "--event-loops":
+          if (i + 1 < args.length) eventLoops = Integer.parseInt(args[++i]);
+          break;
+        case "--workers":
+          if (i + 1 < args.length) workers = Integer.parseInt(args[++i]);
+          break;
+        case "--virtual-threads":
+          virtualThreads = true;
+          break;
         case "-h":
         case "--help":
           printHelp();
@@ -70,7 +113,30 @@ public class Server {
     System.out.println("  -D, --days <n>        Dias de histórico (default: 30)");
     System.out.println("  -S, --memory <n>      Séries em memória (default: 10)");
     System.out.println("  -d, --data <path>     Diretório de dados (default: data)");
-    System.out.println("  -r, --recover         Recuperar estado do disco");
+    System.out.println("  -r, --recover         Recuperar estado do disco e reaplicar o WAL");
+    System.out.println("  --no-wal              Desativar o WAL e os checkpoints do dia corrente");
+    System.out.println(
+        "  --wal-sync <ms>       Intervalo máximo de group commit do WAL (default: "
+            + WriteAheadLog.DEFAULT_SYNC_INTERVAL_MS
+            + ")");
+    System.out.println(
+        "  --wal-batch <n>       Eventos por fsync do WAL (default: "
+            + WriteAheadLog.DEFAULT_SYNC_BATCH
+            + ")");
+    System.out.println(
+        "  --checkpoint <ms>     Intervalo entre checkpoints, 0 desativa (default: 10000)");
+    System.out.println(
+        "  --fsync <política>    Sincronização dos ficheiros: always, batch, never (default: batch)");
+    System.out.println("  --nio                 Servidor com ciclos de eventos NIO partilhados");
+    System.out.println(
+        "  --event-loops <n>     Ciclos de eventos NIO (default: "
+            + NioServer.DEFAULT_EVENT_LOOPS
+            + ")");
+    System.out.println(
+        "  --workers <n>         Threads de processamento de pedidos NIO (default: "
+            + NioServer.DEFAULT_WORKERS
+            + ")");
+    System.out.println("  --virtual-threads     Threads virtuais por conexão (requer Java 21)");
     System.out.println("  -h, --help            Mostrar esta ajuda");
   }
 
@@ -80,23 +146,56 @@ public class Server {
     try {
 
       PersistenceManager persistence = null;
+      WriteAheadLog wal = null;
+      CheckpointStore checkpoints = null;
       if (dataPath != null && !dataPath.isEmpty()) {
-        persistence = new PersistenceManager(dataPath);
+        persistence = new PersistenceManager(dataPath, fsyncPolicy);
+        if (walEnabled) {
+          wal = new WriteAheadLog(new java.io.File(dataPath, "wal"), walSyncMs, walBatch);
+          checkpoints = new CheckpointStore(new java.io.File(dataPath, "wal"));
+        } else {
+          Logger.log("Server", "WAL desativado");
+        }
         Logger.log("Server", "Persistência ativa em: " + dataPath);
       } else {
         Logger.log("Server", "Persistência desativada");
       }
 
       userManager = new UserManager(persistence);
-      database = new TimeSeriesDB(D, S, persistence, recover);
+      database = new TimeSeriesDB(D, S, persistence, wal, checkpoints, recover);
+      database.startCheckpointing(checkpointMs);
 
-      serverSocket = new ServerSocket();
+      if (virtualThreads) {
+        ThreadFactory virtual = VirtualThreads.factory("client-");
+        if (virtual != null) {
+          threads = virtual;
+        } else {
+          virtualThreads = false;
+        }
+      }
+
+      if (nio) {
+        nioServer =
+            new NioServer(
+                eventLoops, workers, virtualThreads ? threads : null, userManager, database);
+        serverSocket = ServerSocketChannel.open().socket();
+      } else {
+        serverSocket = new ServerSocket();
+      }
       serverSocket.setReuseAddress(true);
       serverSocket.bind(new java.net.InetSocketAddress(port));
       
       Logger.log("Server", "Servidor iniciado na porta " + port);
       Logger.log("Server", "Dias de histórico (D): " + D);
       Logger.log("Server", "Limite memória (S): " + S);
+      if (nio) {
+        Logger.log(
+            "Server",
+            "Modo NIO: " + eventLoops + " ciclos de eventos, " + workers + " threads de pedidos");
+      }
+      if (virtualThreads) {
+        Logger.log("Server", "Threads virtuais ativas");
+      }
 
       Runtime.getRuntime()
           .addShutdownHook(
@@ -104,31 +203,23 @@ public class Server {
                   () -> {
                     Logger.log("Server", "\nA guardar estado antes de terminar...");
                     try {
-                      if (database != null) database.saveState();
+                      if (database != null) {
+                        database.saveState();
+                        database.close();
+                      }
                       Logger.log("Server", "Estado guardado em disco");
                     } catch (IOException e) {
                       Logger.error("Server", "Erro ao guardar estado: " + e.getMessage());
                     }
                   }));
 
-      while (running) {
-        try {
-
-          Socket socket = serverSocket.accept();
-          Logger.log("Server", "Nova conexão: " + socket.getRemoteSocketAddress());
-
-          TaggedConnection connection = new TaggedConnection(socket);
-
-          ClientHandler handler = new ClientHandler(connection, userManager, database);
-
-          Thread clientThread = new Thread(handler);
-          clientThread.start();
-
-        } catch (IOException e) {
-          if (running) {
-            Logger.error("Server", "Erro ao aceitar conexão: " + e.getMessage());
-          }
-        }
+      if (virtualThreads) {
+        Thread acceptor = threads.newThread(this::acceptLoop);
+        acceptor.setName("acceptor");
+        acceptor.start();
+        acceptor.join();
+      } else {
+        acceptLoop();
       }
 
     } catch (Exception e) {
@@ -147,6 +238,34 @@ public class Server {
     }
   }
 
+  private void acceptLoop() {
+    while (running) {
+      try {
+
+        Socket socket = serverSocket.accept();
+        Logger.log("Server", "Nova conexão: " + socket.getRemoteSocketAddress());
+
+        if (nioServer != null) {
+          nioServer.accept(socket.getChannel());
+          continue;
+        }
+
+        TaggedConnection connection = new TaggedConnection(socket);
+
+        ClientHandler handler =
+            new ClientHandler(connection, userManager, database, threads, virtualThreads);
+
+        Thread clientThread = threads.newThread(handler);
+        clientThread.start();
+
+      } catch (IOException e) {
+        if (running) {
+          Logger.error("Server", "Erro ao aceitar conexão: " + e.getMessage());
+        }
+      }
+    }
+  }
+
   public void stop() {
     running = false;
     try {
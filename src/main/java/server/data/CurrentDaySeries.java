@@ -1,40 +1,86 @@
 package server.data;
 
+import common.model.Aggregation;
 import common.model.Event;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import server.persistence.WriteAheadLog;
 
 public class CurrentDaySeries {
 
+  public static class Snapshot {
+    public final List<Event> events;
+    public final String lastProduct;
+    public final int consecutiveCount;
+    public final int size;
+
+    Snapshot(List<Event> events, String lastProduct, int consecutiveCount, int size) {
+      this.events = events;
+      this.lastProduct = lastProduct;
+      this.consecutiveCount = consecutiveCount;
+      this.size = size;
+    }
+  }
+
+  private static class ConsecutiveWaiter {
+    final int n;
+    String product;
+
+    ConsecutiveWaiter(int n) {
+      this.n = n;
+    }
+  }
+
+  private static class RunningTotals {
+    int quantity;
+    double volume;
+    double maxPrice = -1;
+    int count;
+  }
+
   private final int dayNumber;
-  private final List<Event> events;
-  private final Set<String> productsSold;
+  private final ProductDictionary dictionary;
+  private final WriteAheadLog wal;
+  private final EventColumns events;
+  private RunningTotals[] totals = new RunningTotals[64];
   private boolean closed;
+  private boolean sealed;
 
-  private String lastProduct;
+  private volatile IngestRing ring;
+  private volatile long appliedLsn;
+
+  private int lastProduct;
   private int consecutiveCount;
 
+  private final List<ConsecutiveWaiter> consecutiveWaiters = new ArrayList<>();
+  private int minConsecutiveWaiter = Integer.MAX_VALUE;
+
   private final Lock lock = new ReentrantLock();
 
   private final Condition newEventCondition = lock.newCondition();
 
   private final Condition dayEndedCondition = lock.newCondition();
 
-  private final Map<String, Condition> productConditions = new HashMap<>();
+  private Condition[] productConditions = new Condition[64];
+
+  public CurrentDaySeries(int dayNumber, ProductDictionary dictionary) {
+    this(dayNumber, dictionary, null);
+  }
 
-  public CurrentDaySeries(int dayNumber) {
+  public CurrentDaySeries(int dayNumber, ProductDictionary dictionary, WriteAheadLog wal) {
     this.dayNumber = dayNumber;
-    this.events = new ArrayList<>();
-    this.productsSold = new HashSet<>();
+    this.dictionary = dictionary;
+    this.wal = wal;
+    this.events = new EventColumns(dictionary);
     this.closed = false;
-    this.lastProduct = null;
+    this.lastProduct = -1;
     this.consecutiveCount = 0;
   }
 
@@ -43,37 +89,260 @@ public class CurrentDaySeries {
   }
 
   public boolean addEvent(Event event) {
-    lock.lock();
     try {
-      if (closed) {
-        return false;
+      return append(event) >= 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public long append(Event event) throws IOException {
+    return append(event.getProduct(), event.getQuantity(), event.getPrice());
+  }
+
+  public long append(String product, int quantity, double price) throws IOException {
+    return append(dictionary.idOf(product), quantity, price);
+  }
+
+  public long append(int product, int quantity, double price) throws IOException {
+    IngestRing r = ring();
+    if (r == null) {
+      return -1;
+    }
+
+    long seq = r.publish(product, quantity, price);
+    if (seq < 0) {
+      return -1;
+    }
+    if (wal == null) {
+      return 0;
+    }
+    r.awaitApplied(seq + 1);
+    r.checkFailure();
+    return appliedLsn;
+  }
+
+  public long append(int[] products, int[] quantities, double[] prices, int count)
+      throws IOException {
+    IngestRing r = ring();
+    if (r == null) {
+      return -1;
+    }
+
+    long end = -1;
+    for (int offset = 0; offset < count; ) {
+      int n = Math.min(count - offset, r.capacity());
+      long seq = r.publish(products, quantities, prices, offset, n);
+      if (seq < 0) {
+        break;
       }
+      end = seq + n;
+      offset += n;
+    }
+    if (end < 0) {
+      return -1;
+    }
+    if (wal == null) {
+      return 0;
+    }
+    r.awaitApplied(end);
+    r.checkFailure();
+    return appliedLsn;
+  }
 
-      events.add(event);
-      String product = event.getProduct();
-      productsSold.add(product);
+  private IngestRing ring() {
+    IngestRing r = ring;
+    if (r != null) {
+      return r;
+    }
 
-      if (product.equals(lastProduct)) {
-        consecutiveCount++;
-      } else {
-        lastProduct = product;
-        consecutiveCount = 1;
+    lock.lock();
+    try {
+      if (ring == null && !sealed) {
+        ring =
+            new IngestRing(
+                IngestRing.DEFAULT_CAPACITY,
+                events.size(),
+                this::applyBatch,
+                "ingest-day-" + dayNumber);
       }
+      return ring;
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      Condition productCond = productConditions.get(product);
-      if (productCond != null) {
-        productCond.signalAll();
+  private void drain() {
+    IngestRing r = ring;
+    if (r != null) {
+      r.drain();
+    }
+  }
+
+  private void applyBatch(IngestRing r, long from, long to) throws IOException {
+    lock.lock();
+    try {
+      long lsn = 0;
+      for (long seq = from; seq < to; seq++) {
+        int product = r.product(seq);
+        int quantity = r.quantity(seq);
+        double price = r.price(seq);
+        if (wal != null) {
+          lsn = wal.append((int) seq, product, quantity, price);
+        }
+        apply(product, quantity, price);
       }
+      appliedLsn = lsn;
+      newEventCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  public void restore(List<Event> recovered) throws IOException {
+    int[] ids = productIds(recovered);
+    lock.lock();
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        Event event = recovered.get(i);
+        apply(ids[i], event.getQuantity(), event.getPrice());
+      }
       newEventCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      return true;
+  public void restore(List<Event> recovered, String lastProduct, int consecutiveCount)
+      throws IOException {
+    int[] ids = productIds(recovered);
+    int last = lastProduct != null ? dictionary.idOf(lastProduct) : -1;
+    lock.lock();
+    try {
+      for (int i = 0; i < ids.length; i++) {
+        Event event = recovered.get(i);
+        record(ids[i], event.getQuantity(), event.getPrice());
+      }
+      this.lastProduct = last;
+      this.consecutiveCount = consecutiveCount;
     } finally {
       lock.unlock();
     }
   }
 
+  public Snapshot snapshotSince(int from) {
+    lock.lock();
+    try {
+      return new Snapshot(
+          events.view(from, events.size()),
+          lastProduct >= 0 ? dictionary.name(lastProduct) : null,
+          consecutiveCount,
+          events.size());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int[] productIds(List<Event> recovered) throws IOException {
+    int[] ids = new int[recovered.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = dictionary.idOf(recovered.get(i).getProduct());
+    }
+    return ids;
+  }
+
+  private void record(int product, int quantity, double price) {
+    events.add(product, quantity, price);
+
+    if (product >= totals.length) {
+      totals = Arrays.copyOf(totals, Math.max(product + 1, totals.length * 2));
+    }
+    RunningTotals t = totals[product];
+    if (t == null) {
+      t = new RunningTotals();
+      totals[product] = t;
+    }
+    t.quantity += quantity;
+    t.volume += quantity * price;
+    if (price > t.maxPrice) {
+      t.maxPrice = price;
+    }
+    t.count++;
+  }
+
+  private void apply(int product, int quantity, double price) {
+    record(product, quantity, price);
+
+    if (product == lastProduct) {
+      consecutiveCount++;
+    } else {
+      lastProduct = product;
+      consecutiveCount = 1;
+    }
+
+    if (consecutiveCount >= minConsecutiveWaiter) {
+      satisfyConsecutiveWaiters();
+    }
+
+    if (product < productConditions.length) {
+      Condition productCond = productConditions[product];
+      if (productCond != null) {
+        productCond.signalAll();
+      }
+    }
+  }
+
+  private void satisfyConsecutiveWaiters() {
+    String product = dictionary.name(lastProduct);
+    for (ConsecutiveWaiter w : consecutiveWaiters) {
+      if (w.product == null && consecutiveCount >= w.n) {
+        w.product = product;
+      }
+    }
+    updateMinConsecutiveWaiter();
+  }
+
+  private void updateMinConsecutiveWaiter() {
+    int min = Integer.MAX_VALUE;
+    for (ConsecutiveWaiter w : consecutiveWaiters) {
+      if (w.product == null) {
+        min = Math.min(min, w.n);
+      }
+    }
+    minConsecutiveWaiter = min;
+  }
+
+  private boolean sold(int product) {
+    return product >= 0 && product < totals.length && totals[product] != null;
+  }
+
+  private Condition productCondition(int product) {
+    if (product >= productConditions.length) {
+      productConditions =
+          Arrays.copyOf(productConditions, Math.max(product + 1, productConditions.length * 2));
+    }
+    Condition c = productConditions[product];
+    if (c == null) {
+      c = lock.newCondition();
+      productConditions[product] = c;
+    }
+    return c;
+  }
+
   public void close() {
+    IngestRing r;
+    lock.lock();
+    try {
+      sealed = true;
+      r = ring;
+    } finally {
+      lock.unlock();
+    }
+
+    if (r != null) {
+      r.close();
+    }
+
     lock.lock();
     try {
       closed = true;
@@ -81,8 +350,10 @@ public class CurrentDaySeries {
       newEventCondition.signalAll();
       dayEndedCondition.signalAll();
 
-      for (Condition c : productConditions.values()) {
-        c.signalAll();
+      for (Condition c : productConditions) {
+        if (c != null) {
+          c.signalAll();
+        }
       }
     } finally {
       lock.unlock();
@@ -99,6 +370,7 @@ public class CurrentDaySeries {
   }
 
   public int size() {
+    drain();
     lock.lock();
     try {
       return events.size();
@@ -108,27 +380,52 @@ public class CurrentDaySeries {
   }
 
   public List<Event> getEvents() {
+    drain();
+    lock.lock();
+    try {
+      return events.view(0, events.size());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Aggregation getAggregation(String product) {
+    int id = dictionary.find(product);
+    drain();
     lock.lock();
     try {
-      return new ArrayList<>(events);
+      if (!sold(id)) {
+        return Aggregation.empty(product, dayNumber);
+      }
+      RunningTotals t = totals[id];
+      return new Aggregation(product, dayNumber, t.quantity, t.volume, t.maxPrice, t.count);
     } finally {
       lock.unlock();
     }
   }
 
   public boolean hasProduct(String product) {
+    int id = dictionary.find(product);
+    drain();
     lock.lock();
     try {
-      return productsSold.contains(product);
+      return sold(id);
     } finally {
       lock.unlock();
     }
   }
 
   public Set<String> getProductsSold() {
+    drain();
     lock.lock();
     try {
-      return new HashSet<>(productsSold);
+      Set<String> names = new HashSet<>();
+      for (int id = 0; id < totals.length; id++) {
+        if (totals[id] != null) {
+          names.add(dictionary.name(id));
+        }
+      }
+      return names;
     } finally {
       lock.unlock();
     }
@@ -138,23 +435,20 @@ public class CurrentDaySeries {
     lock.lock();
     try {
 
-      if (!productConditions.containsKey(p1)) {
-        productConditions.put(p1, lock.newCondition());
-      }
-      if (!productConditions.containsKey(p2)) {
-        productConditions.put(p2, lock.newCondition());
-      }
-
-      while (!closed && !(productsSold.contains(p1) && productsSold.contains(p2))) {
+      while (true) {
+        int id1 = dictionary.find(p1);
+        int id2 = dictionary.find(p2);
+        if (closed || (sold(id1) && sold(id2))) {
+          return sold(id1) && sold(id2);
+        }
 
-        if (!productsSold.contains(p1)) {
-          productConditions.get(p1).await();
+        int missing = sold(id1) ? id2 : id1;
+        if (missing >= 0) {
+          productCondition(missing).await();
         } else {
-          productConditions.get(p2).await();
+          newEventCondition.await();
         }
       }
-
-      return productsSold.contains(p1) && productsSold.contains(p2);
     } finally {
       lock.unlock();
     }
@@ -164,29 +458,39 @@ public class CurrentDaySeries {
     lock.lock();
     try {
 
-      while (!closed && consecutiveCount < n) {
-        newEventCondition.await();
+      if (consecutiveCount >= n) {
+        return dictionary.name(lastProduct);
       }
 
-      if (consecutiveCount >= n) {
-        return lastProduct;
+      ConsecutiveWaiter waiter = new ConsecutiveWaiter(n);
+      consecutiveWaiters.add(waiter);
+      minConsecutiveWaiter = Math.min(minConsecutiveWaiter, n);
+      try {
+        while (!closed && waiter.product == null) {
+          newEventCondition.await();
+        }
+        return waiter.product;
+      } finally {
+        consecutiveWaiters.remove(waiter);
+        updateMinConsecutiveWaiter();
       }
-      return null;
     } finally {
       lock.unlock();
     }
   }
 
   public String getLastProduct() {
+    drain();
     lock.lock();
     try {
-      return lastProduct;
+      return lastProduct >= 0 ? dictionary.name(lastProduct) : null;
     } finally {
       lock.unlock();
     }
   }
 
   public int getConsecutiveCount() {
+    drain();
     lock.lock();
     try {
       return consecutiveCount;
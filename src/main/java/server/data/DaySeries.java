@@ -1,9 +1,15 @@
 package server.data;
 
+import common.model.Aggregation;
 import common.model.Event;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -12,18 +18,20 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class DaySeries {
 
   private final int dayNumber;
-  private final List<Event> events;
-  private final Set<String> productsSold;
+  private final ProductDictionary dictionary;
+  private final EventColumns events;
+  private final BitSet productsSold;
   private boolean closed;
 
   private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
   private final Lock readLock = rwLock.readLock();
   private final Lock writeLock = rwLock.writeLock();
 
-  public DaySeries(int dayNumber) {
+  public DaySeries(int dayNumber, ProductDictionary dictionary) {
     this.dayNumber = dayNumber;
-    this.events = new ArrayList<>();
-    this.productsSold = new HashSet<>();
+    this.dictionary = dictionary;
+    this.events = new EventColumns(dictionary);
+    this.productsSold = new BitSet();
     this.closed = false;
   }
 
@@ -31,14 +39,37 @@ public class DaySeries {
     return dayNumber;
   }
 
-  public boolean addEvent(Event event) {
+  public boolean addEvent(Event event) throws IOException {
+    int product = dictionary.idOf(event.getProduct());
     writeLock.lock();
     try {
       if (closed) {
         return false;
       }
-      events.add(event);
-      productsSold.add(event.getProduct());
+      events.add(product, event.getQuantity(), event.getPrice());
+      productsSold.set(product);
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  public boolean addEvents(List<Event> newEvents) throws IOException {
+    int[] ids = new int[newEvents.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = dictionary.idOf(newEvents.get(i).getProduct());
+    }
+
+    writeLock.lock();
+    try {
+      if (closed) {
+        return false;
+      }
+      for (int i = 0; i < ids.length; i++) {
+        Event e = newEvents.get(i);
+        events.add(ids[i], e.getQuantity(), e.getPrice());
+        productsSold.set(ids[i]);
+      }
       return true;
     } finally {
       writeLock.unlock();
@@ -75,19 +106,32 @@ public class DaySeries {
   public List<Event> getEvents() {
     readLock.lock();
     try {
-      return new ArrayList<>(events);
+      return events.view(0, events.size());
     } finally {
       readLock.unlock();
     }
   }
 
   public List<Event> getEventsByProducts(Set<String> products) {
+    BitSet wanted = new BitSet();
+    for (String product : products) {
+      int id = dictionary.find(product);
+      if (id >= 0) {
+        wanted.set(id);
+      }
+    }
+
     readLock.lock();
     try {
       List<Event> filtered = new ArrayList<>();
-      for (Event e : events) {
-        if (products.contains(e.getProduct())) {
-          filtered.add(e);
+      if (!wanted.intersects(productsSold)) {
+        return filtered;
+      }
+      for (int i = 0; i < events.size(); i++) {
+        int product = events.product(i);
+        if (wanted.get(product)) {
+          filtered.add(
+              new Event(dictionary.name(product), events.quantity(i), events.price(i)));
         }
       }
       return filtered;
@@ -97,9 +141,14 @@ public class DaySeries {
   }
 
   public boolean hasProduct(String product) {
+    int id = dictionary.find(product);
+    if (id < 0) {
+      return false;
+    }
+
     readLock.lock();
     try {
-      return productsSold.contains(product);
+      return productsSold.get(id);
     } finally {
       readLock.unlock();
     }
@@ -108,69 +157,92 @@ public class DaySeries {
   public Set<String> getProductsSold() {
     readLock.lock();
     try {
-      return new HashSet<>(productsSold);
+      Set<String> names = new HashSet<>();
+      for (int id = productsSold.nextSetBit(0); id >= 0; id = productsSold.nextSetBit(id + 1)) {
+        names.add(dictionary.name(id));
+      }
+      return names;
     } finally {
       readLock.unlock();
     }
   }
 
-  public int getTotalQuantity(String product) {
+  public Aggregation getAggregation(String product) {
+    int id = dictionary.find(product);
+
     readLock.lock();
     try {
-      int total = 0;
-      for (Event e : events) {
-        if (e.getProduct().equals(product)) {
-          total += e.getQuantity();
+      int quantity = 0;
+      double volume = 0;
+      double max = -1;
+      int count = 0;
+      if (id >= 0 && productsSold.get(id)) {
+        for (int i = 0; i < events.size(); i++) {
+          if (events.product(i) == id) {
+            int q = events.quantity(i);
+            double p = events.price(i);
+            quantity += q;
+            volume += q * p;
+            if (p > max) {
+              max = p;
+            }
+            count++;
+          }
         }
       }
-      return total;
+      return new Aggregation(product, dayNumber, quantity, volume, max, count);
     } finally {
       readLock.unlock();
     }
   }
 
+  public int getTotalQuantity(String product) {
+    return getAggregation(product).getTotalQuantity();
+  }
+
   public double getTotalVolume(String product) {
-    readLock.lock();
-    try {
-      double total = 0;
-      for (Event e : events) {
-        if (e.getProduct().equals(product)) {
-          total += e.getValue();
-        }
-      }
-      return total;
-    } finally {
-      readLock.unlock();
-    }
+    return getAggregation(product).getTotalVolume();
   }
 
   public double getMaxPrice(String product) {
-    readLock.lock();
-    try {
-      double max = -1;
-      for (Event e : events) {
-        if (e.getProduct().equals(product)) {
-          if (e.getPrice() > max) {
-            max = e.getPrice();
-          }
-        }
-      }
-      return max;
-    } finally {
-      readLock.unlock();
-    }
+    return getAggregation(product).getMaxPrice();
   }
 
   public int getEventCount(String product) {
+    return getAggregation(product).getEventCount();
+  }
+
+  public Map<String, Aggregation> getSummary() {
     readLock.lock();
     try {
-      int count = 0;
-      for (Event e : events) {
-        if (e.getProduct().equals(product)) {
-          count++;
+      int n = productsSold.length();
+      int[] quantities = new int[n];
+      int[] counts = new int[n];
+      double[] volumes = new double[n];
+      double[] maxPrices = new double[n];
+      Arrays.fill(maxPrices, -1);
+
+      for (int i = 0; i < events.size(); i++) {
+        int product = events.product(i);
+        int q = events.quantity(i);
+        double p = events.price(i);
+        quantities[product] += q;
+        volumes[product] += q * p;
+        if (p > maxPrices[product]) {
+          maxPrices[product] = p;
         }
+        counts[product]++;
+      }
+
+      Map<String, Aggregation> summary = new HashMap<>();
+      for (int id = productsSold.nextSetBit(0); id >= 0; id = productsSold.nextSetBit(id + 1)) {
+        String product = dictionary.name(id);
+        summary.put(
+            product,
+            new Aggregation(
+                product, dayNumber, quantities[id], volumes[id], maxPrices[id], counts[id]));
       }
-      return count;
+      return summary;
     } finally {
       readLock.unlock();
     }
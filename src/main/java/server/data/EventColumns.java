@@ -0,0 +1,106 @@
+package server.data;
+
+import common.model.Event;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+class EventColumns {
+
+  static final int CHUNK_SHIFT = 12;
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static class Chunk {
+    final int[] products = new int[CHUNK_SIZE];
+    final int[] quantities = new int[CHUNK_SIZE];
+    final double[] prices = new double[CHUNK_SIZE];
+  }
+
+  private final ProductDictionary dictionary;
+
+  private Chunk[] chunks = new Chunk[16];
+  private int size;
+
+  EventColumns(ProductDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  void add(int product, int quantity, double price) {
+    int c = size >>> CHUNK_SHIFT;
+    if (c == chunks.length) {
+      chunks = Arrays.copyOf(chunks, chunks.length * 2);
+    }
+    Chunk chunk = chunks[c];
+    if (chunk == null) {
+      chunk = new Chunk();
+      chunks[c] = chunk;
+    }
+
+    int i = size & CHUNK_MASK;
+    chunk.products[i] = product;
+    chunk.quantities[i] = quantity;
+    chunk.prices[i] = price;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int product(int index) {
+    return chunks[index >>> CHUNK_SHIFT].products[index & CHUNK_MASK];
+  }
+
+  int quantity(int index) {
+    return chunks[index >>> CHUNK_SHIFT].quantities[index & CHUNK_MASK];
+  }
+
+  double price(int index) {
+    return chunks[index >>> CHUNK_SHIFT].prices[index & CHUNK_MASK];
+  }
+
+  List<Event> view(int from, int to) {
+    return new View(dictionary, chunks, from, to);
+  }
+
+  private static class View extends AbstractList<Event> implements RandomAccess {
+    private final ProductDictionary dictionary;
+    private final Chunk[] chunks;
+    private final int from;
+    private final int to;
+
+    View(ProductDictionary dictionary, Chunk[] chunks, int from, int to) {
+      this.dictionary = dictionary;
+      this.chunks = chunks;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Event get(int index) {
+      if (index < 0 || index >= to - from) {
+        throw new IndexOutOfBoundsException(index);
+      }
+      int pos = from + index;
+      Chunk chunk = chunks[pos >>> CHUNK_SHIFT];
+      int i = pos & CHUNK_MASK;
+      return new Event(
+          dictionary.name(chunk.products[i]), chunk.quantities[i], chunk.prices[i]);
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+
+    @Override
+    public List<Event> subList(int fromIndex, int toIndex) {
+      if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+        throw new IndexOutOfBoundsException();
+      }
+      return new View(dictionary, chunks, from + fromIndex, from + toIndex);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package server.data;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+class IngestRing {
+
+  static final int DEFAULT_CAPACITY = 1 << 14;
+
+  private static final int MAX_BATCH = 1024;
+  private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+
+  interface Applier {
+    void apply(IngestRing ring, long from, long to) throws IOException;
+  }
+
+  private final int capacity;
+  private final int mask;
+  private final int[] products;
+  private final int[] quantities;
+  private final double[] prices;
+  private final AtomicLongArray published;
+
+  private final AtomicLong claimed;
+  private volatile long applied;
+  private volatile long end = -1;
+  private volatile IOException failure;
+
+  private final Applier applier;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition progress = lock.newCondition();
+
+  private volatile boolean applierWaiting;
+  private final AtomicInteger producersWaiting = new AtomicInteger();
+
+  IngestRing(int capacity, long firstSeq, Applier applier, String name) {
+    this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+    this.mask = this.capacity - 1;
+    this.products = new int[this.capacity];
+    this.quantities = new int[this.capacity];
+    this.prices = new double[this.capacity];
+    this.published = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      published.set(i, -1);
+    }
+
+    this.claimed = new AtomicLong(firstSeq);
+    this.applied = firstSeq;
+    this.applier = applier;
+
+    Thread thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  long publish(int product, int quantity, double price) {
+    long seq = claim(1);
+    if (seq < 0) {
+      return -1;
+    }
+
+    awaitApplied(seq - capacity + 1);
+
+    int index = (int) (seq & mask);
+    products[index] = product;
+    quantities[index] = quantity;
+    prices[index] = price;
+    published.set(index, seq);
+
+    wakeApplier();
+    return seq;
+  }
+
+  long publish(int[] products, int[] quantities, double[] prices, int offset, int count) {
+    long seq = claim(count);
+    if (seq < 0) {
+      return -1;
+    }
+
+    awaitApplied(seq + count - capacity);
+
+    for (int i = 0; i < count; i++) {
+      int index = (int) ((seq + i) & mask);
+      this.products[index] = products[offset + i];
+      this.quantities[index] = quantities[offset + i];
+      this.prices[index] = prices[offset + i];
+      published.set(index, seq + i);
+    }
+
+    wakeApplier();
+    return seq;
+  }
+
+  private long claim(int count) {
+    while (true) {
+      long c = claimed.get();
+      if (c < 0) {
+        return -1;
+      }
+      if (claimed.compareAndSet(c, c + count)) {
+        return c;
+      }
+    }
+  }
+
+  private void wakeApplier() {
+    if (applierWaiting) {
+      lock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  int product(long seq) {
+    return products[(int) (seq & mask)];
+  }
+
+  int quantity(long seq) {
+    return quantities[(int) (seq & mask)];
+  }
+
+  double price(long seq) {
+    return prices[(int) (seq & mask)];
+  }
+
+  void awaitApplied(long seq) {
+    for (int i = 0; i < SPIN_TRIES; i++) {
+      if (applied >= seq) {
+        return;
+      }
+      Thread.onSpinWait();
+    }
+
+    producersWaiting.incrementAndGet();
+    lock.lock();
+    try {
+      while (applied < seq) {
+        progress.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+      producersWaiting.decrementAndGet();
+    }
+  }
+
+  void drain() {
+    long c = claimed.get();
+    awaitApplied(c < 0 ? -c - 1 : c);
+  }
+
+  void checkFailure() throws IOException {
+    IOException e = failure;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  void close() {
+    long last = claimed.getAndUpdate(c -> c < 0 ? c : -c - 1);
+    if (last < 0) {
+      last = -last - 1;
+    }
+    end = last;
+
+    lock.lock();
+    try {
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    drain();
+  }
+
+  private boolean isPublished(long seq) {
+    return published.get((int) (seq & mask)) == seq;
+  }
+
+  private boolean isDrained(long next) {
+    long last = end;
+    return last >= 0 && next >= last;
+  }
+
+  private void run() {
+    long next = applied;
+    while (true) {
+      long to = next;
+      while (to - next < MAX_BATCH && isPublished(to)) {
+        to++;
+      }
+
+      if (to == next) {
+        if (isDrained(next)) {
+          return;
+        }
+        if (!waitForEvents(next)) {
+          return;
+        }
+        continue;
+      }
+
+      if (failure == null) {
+        try {
+          applier.apply(this, next, to);
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      next = to;
+      applied = to;
+      if (producersWaiting.get() > 0) {
+        lock.lock();
+        try {
+          progress.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  private boolean waitForEvents(long next) {
+    for (int i = 0; i < SPIN_TRIES; i++) {
+      if (isPublished(next) || isDrained(next)) {
+        return true;
+      }
+      Thread.onSpinWait();
+    }
+
+    lock.lock();
+    try {
+      applierWaiting = true;
+      while (!isPublished(next) && !isDrained(next)) {
+        notEmpty.await();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      applierWaiting = false;
+      lock.unlock();
+    }
+  }
+}
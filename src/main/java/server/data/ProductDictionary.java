@@ -0,0 +1,104 @@
+package server.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ProductDictionary {
+
+  public static final int MAX_PRODUCTS = 1 << 16;
+
+  public interface Store {
+    void append(int id, String name) throws IOException;
+
+    void clear() throws IOException;
+  }
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] names;
+  private int size;
+
+  private final Store store;
+
+  private final Lock lock = new ReentrantLock();
+
+  public ProductDictionary() {
+    this(List.of(), null);
+  }
+
+  public ProductDictionary(List<String> recovered, Store store) {
+    this.store = store;
+    this.names = new String[Math.max(64, recovered.size() * 2)];
+    for (String name : recovered) {
+      names[size] = name;
+      ids.put(name, size);
+      size++;
+    }
+  }
+
+  public int idOf(String name) throws IOException {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+
+    lock.lock();
+    try {
+      id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+
+      int newId = size;
+      if (newId >= MAX_PRODUCTS) {
+        throw new IOException("Limite de produtos atingido (" + MAX_PRODUCTS + ")");
+      }
+      if (store != null) {
+        store.append(newId, name);
+      }
+
+      String[] current = names;
+      if (newId == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[newId] = name;
+      names = current;
+      size++;
+      ids.put(name, newId);
+      return newId;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void clear() throws IOException {
+    lock.lock();
+    try {
+      if (store != null) {
+        store.clear();
+      }
+      ids.clear();
+      names = new String[64];
+      size = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int find(String name) {
+    Integer id = ids.get(name);
+    return id != null ? id : -1;
+  }
+
+  public String name(int id) {
+    return names[id];
+  }
+
+  public int size() {
+    return ids.size();
+  }
+}
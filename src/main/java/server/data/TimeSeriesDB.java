@@ -4,15 +4,23 @@ import common.Logger;
 import common.model.Aggregation;
 import common.model.Event;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import server.persistence.CheckpointStore;
 import server.persistence.PersistenceManager;
+import server.persistence.WriteAheadLog;
 
 public class TimeSeriesDB {
 
@@ -20,6 +28,10 @@ public class TimeSeriesDB {
   private final int S;
 
   private final PersistenceManager persistence;
+  private final WriteAheadLog wal;
+  private final CheckpointStore checkpoints;
+  private int checkpointedCount;
+  private final Lock checkpointLock = new ReentrantLock();
 
   private CurrentDaySeries currentDay;
   private int currentDayNumber;
@@ -28,7 +40,11 @@ public class TimeSeriesDB {
   private CacheEntry first;
   private CacheEntry last;
 
-  private final Map<String, Aggregation> aggregationCache = new HashMap<>();
+  private final ProductDictionary dictionary;
+
+  private final Map<Long, Aggregation> aggregationCache = new HashMap<>();
+
+  private final Map<Integer, Map<String, Aggregation>> daySummaries = new ConcurrentHashMap<>();
 
   private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
   private final Lock readLock = rwLock.readLock();
@@ -51,9 +67,23 @@ public class TimeSeriesDB {
 
   public TimeSeriesDB(int D, int S, PersistenceManager persistence, boolean recover)
       throws IOException {
+    this(D, S, persistence, null, null, recover);
+  }
+
+  public TimeSeriesDB(
+      int D,
+      int S,
+      PersistenceManager persistence,
+      WriteAheadLog wal,
+      CheckpointStore checkpoints,
+      boolean recover)
+      throws IOException {
     this.D = D;
     this.S = S;
     this.persistence = persistence;
+    this.wal = wal;
+    this.checkpoints = checkpoints;
+    this.dictionary = persistence != null ? persistence.products() : new ProductDictionary();
 
     this.memoryCache = new HashMap<>();
 
@@ -69,7 +99,74 @@ public class TimeSeriesDB {
       this.currentDayNumber = 1;
     }
 
-    this.currentDay = new CurrentDaySeries(currentDayNumber);
+    this.currentDay = new CurrentDaySeries(currentDayNumber, dictionary, wal);
+
+    if (wal != null) {
+      if (recover) {
+        if (checkpoints != null) {
+          CheckpointStore.Checkpoint checkpoint = checkpoints.load(currentDayNumber);
+          currentDay.restore(
+              checkpoint.events, checkpoint.lastProduct, checkpoint.consecutiveCount);
+          checkpointedCount = checkpoint.events.size();
+          checkpoints.deleteAllExcept(currentDayNumber);
+        }
+        currentDay.restore(wal.recover(currentDayNumber, checkpointedCount, dictionary));
+      } else {
+        if (checkpoints != null) {
+          checkpoints.deleteDay(currentDayNumber);
+        }
+        wal.startDay(currentDayNumber);
+      }
+    }
+
+    if (recover && persistence != null) {
+      indexSavedDays();
+      warmUp();
+    }
+  }
+
+  private void indexSavedDays() throws IOException {
+    long start = System.currentTimeMillis();
+    List<Integer> days = new ArrayList<>();
+    for (int day : persistence.listSavedDays()) {
+      if (day < currentDayNumber && day >= currentDayNumber - D) {
+        days.add(day);
+      }
+    }
+    daySummaries.putAll(persistence.loadDaySummaries(days));
+    Logger.log(
+        "DB",
+        "Indexados "
+            + daySummaries.size()
+            + " dias em "
+            + (System.currentTimeMillis() - start)
+            + " ms");
+  }
+
+  private void warmUp() {
+    int n = Math.min(S, D);
+    ExecutorService warmPool =
+        Executors.newFixedThreadPool(
+            Math.max(1, Math.min(n, Runtime.getRuntime().availableProcessors())),
+            r -> {
+              Thread t = new Thread(r, "cache-warmup");
+              t.setDaemon(true);
+              return t;
+            });
+    for (int i = 1; i <= n; i++) {
+      int dayNum = currentDayNumber - i;
+      if (dayNum < 1) break;
+      if (!daySummaries.containsKey(dayNum)) continue;
+      warmPool.submit(
+          () -> {
+            try {
+              getOrLoadFromHistory(dayNum);
+            } catch (IOException e) {
+              Logger.error("DB", "Erro ao pré-carregar dia " + dayNum + ": " + e.getMessage());
+            }
+          });
+    }
+    warmPool.shutdown();
   }
 
   public TimeSeriesDB(int D) {
@@ -77,14 +174,21 @@ public class TimeSeriesDB {
       this.D = D;
       this.S = D;
       this.persistence = null;
+      this.wal = null;
+      this.checkpoints = null;
+      this.dictionary = new ProductDictionary();
       this.memoryCache = new HashMap<>();
       this.currentDayNumber = 1;
-      this.currentDay = new CurrentDaySeries(currentDayNumber);
+      this.currentDay = new CurrentDaySeries(currentDayNumber, dictionary);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
+  public ProductDictionary getProducts() {
+    return dictionary;
+  }
+
   public int getCurrentDayNumber() {
     readLock.lock();
     try {
@@ -229,11 +333,87 @@ public class TimeSeriesDB {
     }
   }
 
+  public void checkpoint() throws IOException {
+    if (wal == null || checkpoints == null) return;
+
+    checkpointLock.lock();
+    try {
+      int dayNumber;
+      int from;
+      int segment;
+      CurrentDaySeries.Snapshot snapshot;
+      readLock.lock();
+      try {
+        if (currentDay.size() == checkpointedCount) {
+          return;
+        }
+        dayNumber = currentDayNumber;
+        from = checkpointedCount;
+        segment = wal.rotate();
+        snapshot = currentDay.snapshotSince(from);
+      } finally {
+        readLock.unlock();
+      }
+
+      checkpoints.append(
+          dayNumber, from, snapshot.events, snapshot.lastProduct, snapshot.consecutiveCount);
+
+      boolean sameDay;
+      readLock.lock();
+      try {
+        sameDay = dayNumber == currentDayNumber;
+        if (sameDay) {
+          checkpointedCount = snapshot.size;
+        }
+      } finally {
+        readLock.unlock();
+      }
+
+      if (sameDay) {
+        wal.deleteSegmentsBefore(dayNumber, segment);
+      } else {
+        checkpoints.deleteDay(dayNumber);
+      }
+    } finally {
+      checkpointLock.unlock();
+    }
+  }
+
+  public void startCheckpointing(long intervalMs) {
+    if (wal == null || checkpoints == null || intervalMs <= 0) return;
+
+    Thread checkpointer =
+        new Thread(
+            () -> {
+              while (true) {
+                try {
+                  Thread.sleep(intervalMs);
+                  checkpoint();
+                } catch (InterruptedException e) {
+                  return;
+                } catch (IOException e) {
+                  Logger.error("DB", "Erro ao criar checkpoint: " + e.getMessage());
+                }
+              }
+            },
+            "checkpointer");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+  }
+
+  public void close() throws IOException {
+    if (wal != null) {
+      wal.close();
+    }
+  }
+
   public void newDay() throws IOException {
     writeLock.lock();
     try {
       currentDay.close();
       DaySeries closedDay = convertToDaySeries(currentDay);
+      daySummaries.put(currentDayNumber, closedDay.getSummary());
+      daySummaries.remove(currentDayNumber - D);
 
       if (persistence != null) {
         ensureMemoryLimit();
@@ -260,6 +440,16 @@ public class TimeSeriesDB {
         }
 
         persistence.saveState(new PersistenceManager.ServerState(currentDayNumber + 1, D, S));
+        persistence.sync();
+
+        if (wal != null) {
+          wal.startDay(currentDayNumber + 1);
+          wal.deleteDay(currentDayNumber);
+        }
+        if (checkpoints != null) {
+          checkpoints.deleteDay(currentDayNumber);
+        }
+        checkpointedCount = 0;
       } else {
         cacheLock.lock();
         try {
@@ -275,45 +465,132 @@ public class TimeSeriesDB {
       }
 
       currentDayNumber++;
-      currentDay = new CurrentDaySeries(currentDayNumber);
+      currentDay = new CurrentDaySeries(currentDayNumber, dictionary, wal);
 
     } finally {
       writeLock.unlock();
     }
   }
 
-  private DaySeries convertToDaySeries(CurrentDaySeries current) {
-    DaySeries day = new DaySeries(current.getDayNumber());
-    for (Event e : current.getEvents()) {
-      day.addEvent(e);
-    }
+  private DaySeries convertToDaySeries(CurrentDaySeries current) throws IOException {
+    DaySeries day = new DaySeries(current.getDayNumber(), dictionary);
+    day.addEvents(current.getEvents());
     day.close();
     return day;
   }
 
   public boolean addEvent(Event event) {
+    return addEvent(event.getProduct(), event.getQuantity(), event.getPrice());
+  }
+
+  public static boolean isValid(int quantity, double price) {
+    return quantity > 0 && price >= 0;
+  }
+
+  public boolean addEvent(String product, int quantity, double price) {
+    if (!isValid(quantity, price)) {
+      Logger.error(
+          "DB", "Evento rejeitado (dados inválidos): " + new Event(product, quantity, price));
+      return false;
+    }
 
-    if (event.getQuantity() <= 0 || event.getPrice() < 0) {
-      Logger.error("DB", "Evento rejeitado (dados inválidos): " + event);
+    try {
+      return addEvent(dictionary.idOf(product), quantity, price);
+    } catch (IOException e) {
+      Logger.error("DB", "Erro ao registar produto: " + e.getMessage());
+      return false;
+    }
+  }
+
+  public boolean addEvent(int product, int quantity, double price) {
+
+    if (!isValid(quantity, price)) {
+      Logger.error(
+          "DB",
+          "Evento rejeitado (dados inválidos): "
+              + new Event(dictionary.name(product), quantity, price));
+      return false;
+    }
+
+    try {
+      CurrentDaySeries day = liveDay();
+      long lsn = day.append(product, quantity, price);
+      while (lsn < 0 && day != liveDay()) {
+        day = liveDay();
+        lsn = day.append(product, quantity, price);
+      }
+      if (lsn < 0) {
+        return false;
+      }
+      if (wal != null) {
+        wal.awaitDurable(lsn);
+      }
+      return true;
+    } catch (IOException e) {
+      Logger.error("DB", "Erro ao registar evento no WAL: " + e.getMessage());
       return false;
     }
+  }
 
+  private CurrentDaySeries liveDay() {
     readLock.lock();
-    CurrentDaySeries day;
     try {
-      day = currentDay;
+      return currentDay;
     } finally {
       readLock.unlock();
     }
-    return day.addEvent(event);
   }
 
-  public boolean addEvent(String product, int quantity, double price) {
-    return addEvent(new Event(product, quantity, price));
+  public int addEvents(
+      int[] products, int[] quantities, double[] prices, int count, BitSet rejected) {
+    int accepted = 0;
+    for (int i = 0; i < count; i++) {
+      if (products[i] < 0 || !isValid(quantities[i], prices[i])) {
+        String product = products[i] >= 0 ? dictionary.name(products[i]) : "?";
+        Logger.error(
+            "DB",
+            "Evento rejeitado (dados inválidos): "
+                + new Event(product, quantities[i], prices[i]));
+        rejected.set(i);
+        continue;
+      }
+      products[accepted] = products[i];
+      quantities[accepted] = quantities[i];
+      prices[accepted] = prices[i];
+      accepted++;
+    }
+    if (accepted == 0) {
+      return 0;
+    }
+
+    try {
+      CurrentDaySeries day = liveDay();
+      long lsn = day.append(products, quantities, prices, accepted);
+      while (lsn < 0 && day != liveDay()) {
+        day = liveDay();
+        lsn = day.append(products, quantities, prices, accepted);
+      }
+      if (lsn < 0) {
+        return -1;
+      }
+      if (wal != null) {
+        wal.awaitDurable(lsn);
+      }
+      return accepted;
+    } catch (IOException e) {
+      Logger.error("DB", "Erro ao registar eventos no WAL: " + e.getMessage());
+      return -1;
+    }
   }
 
   private Aggregation getAggregationForDay(String product, int dayNumber) throws IOException {
-    String cacheKey = product + ":" + dayNumber;
+    Map<String, Aggregation> summary = daySummaries.get(dayNumber);
+    if (summary != null) {
+      Aggregation agg = summary.get(product);
+      return agg != null ? agg : Aggregation.empty(product, dayNumber);
+    }
+
+    long cacheKey = cacheKey(product, dayNumber);
 
     cacheLock.lock();
     try {
@@ -330,14 +607,19 @@ public class TimeSeriesDB {
       return Aggregation.empty(product, dayNumber);
     }
 
-    Aggregation agg =
-        new Aggregation(
-            product,
-            dayNumber,
-            day.getTotalQuantity(product),
-            day.getTotalVolume(product),
-            day.getMaxPrice(product),
-            day.getEventCount(product));
+    Aggregation agg = day.getAggregation(product);
+
+    cacheAggregation(cacheKey, agg);
+    return agg;
+  }
+
+  private long cacheKey(String product, int dayNumber) {
+    int id = dictionary.find(product);
+    return id < 0 ? -1 : ((long) id << 32) | (dayNumber & 0xFFFFFFFFL);
+  }
+
+  private void cacheAggregation(long cacheKey, Aggregation agg) {
+    if (cacheKey < 0) return;
 
     cacheLock.lock();
     try {
@@ -345,200 +627,138 @@ public class TimeSeriesDB {
     } finally {
       cacheLock.unlock();
     }
-    return agg;
   }
 
   private void cleanCacheForDay(int dayNumber) {
-    String suffix = ":" + dayNumber;
-
     cacheLock.lock();
     try {
-      aggregationCache.entrySet().removeIf(e -> e.getKey().endsWith(suffix));
+      aggregationCache.keySet().removeIf(key -> (int) key.longValue() == dayNumber);
     } finally {
       cacheLock.unlock();
     }
   }
 
-  public int getQuantity(String product, int d) throws IOException {
-    readLock.lock();
-    try {
-      if (d < 1 || d > D) return -1;
-
-      int total = 0;
-      for (int i = 1; i <= d; i++) {
-        int dayNum = currentDayNumber - i;
-        if (dayNum >= 1) {
-
-          DaySeries day = getFromCache(dayNum);
-
-          if (day != null) {
-            Aggregation agg = getAggregationForDay(product, dayNum);
-            total += agg.getTotalQuantity();
-          } else if (persistence != null) {
-
-            final int[] dayTotal = {0};
-            persistence.streamEvents(
-                dayNum,
-                e -> {
-                  if (e.getProduct().equals(product)) {
-                    dayTotal[0] += e.getQuantity();
-                  }
-                });
-            total += dayTotal[0];
-          }
-        }
-      }
-      return total;
-    } finally {
-      readLock.unlock();
-    }
+  public CompletableFuture<Aggregation> aggregateAsync(String product, int d) {
+    return aggregateAsync(product, d, false);
   }
 
-  public double getVolume(String product, int d) throws IOException {
+  public CompletableFuture<Aggregation> aggregateAsync(
+      String product, int d, boolean includeToday) {
+    Aggregation total = Aggregation.empty(product, -1);
+    List<Integer> diskDays = new ArrayList<>();
+    CurrentDaySeries today = null;
+
     readLock.lock();
     try {
-      if (d < 1 || d > D) return -1;
+      if (d < 1 || d > D) return CompletableFuture.completedFuture(null);
+
+      if (includeToday) {
+        today = currentDay;
+      }
 
-      double total = 0;
       for (int i = 1; i <= d; i++) {
         int dayNum = currentDayNumber - i;
-        if (dayNum >= 1) {
-
-          DaySeries day = getFromCache(dayNum);
-
-          if (day != null) {
-            Aggregation agg = getAggregationForDay(product, dayNum);
-            total += agg.getTotalVolume();
-          } else if (persistence != null) {
-
-            final double[] dayVol = {0};
-            persistence.streamEvents(
-                dayNum,
-                e -> {
-                  if (e.getProduct().equals(product)) {
-                    dayVol[0] += (e.getQuantity() * e.getPrice());
-                  }
-                });
-            total += dayVol[0];
-          }
+        if (dayNum < 1) break;
+
+        boolean inMemory;
+        cacheLock.lock();
+        try {
+          inMemory = getFromCache(dayNum) != null;
+        } finally {
+          cacheLock.unlock();
+        }
+
+        if (inMemory || daySummaries.containsKey(dayNum)) {
+          total = total.combine(getAggregationForDay(product, dayNum));
+        } else if (persistence != null) {
+          diskDays.add(dayNum);
         }
       }
-      return total;
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
     } finally {
       readLock.unlock();
     }
-  }
 
-  public double getAveragePrice(String product, int d) throws IOException {
-    readLock.lock();
-    try {
-      if (d < 1 || d > D) return -1;
-
-      double totalVolume = 0;
-      int totalQuantity = 0;
-
-      for (int i = 1; i <= d; i++) {
-        int dayNum = currentDayNumber - i;
-        if (dayNum >= 1) {
-          DaySeries day = getFromCache(dayNum);
-
-          if (day != null) {
-            Aggregation agg = getAggregationForDay(product, dayNum);
-            totalVolume += agg.getTotalVolume();
-            totalQuantity += agg.getTotalQuantity();
-          } else if (persistence != null) {
-
-            final double[] dayVol = {0};
-            final int[] dayQty = {0};
-            persistence.streamEvents(
-                dayNum,
-                e -> {
-                  if (e.getProduct().equals(product)) {
-                    dayQty[0] += e.getQuantity();
-                    dayVol[0] += (e.getQuantity() * e.getPrice());
-                  }
-                });
-            totalVolume += dayVol[0];
-            totalQuantity += dayQty[0];
-          }
-        }
-      }
+    if (today != null) {
+      total = total.combine(today.getAggregation(product));
+    }
 
-      return totalQuantity == 0 ? 0 : totalVolume / totalQuantity;
-    } finally {
-      readLock.unlock();
+    CompletableFuture<Aggregation> result = CompletableFuture.completedFuture(total);
+    for (int dayNum : diskDays) {
+      result = result.thenCombine(diskAggregationAsync(product, dayNum), Aggregation::combine);
     }
+    return result;
   }
 
-  public double getMaxPrice(String product, int d) throws IOException {
-    readLock.lock();
-    try {
-      if (d < 1 || d > D) return -1;
-
-      double max = -1;
-      for (int i = 1; i <= d; i++) {
-        int dayNum = currentDayNumber - i;
-        if (dayNum >= 1) {
-          DaySeries day = getFromCache(dayNum);
+  private CompletableFuture<Aggregation> diskAggregationAsync(String product, int dayNumber) {
+    long cacheKey = cacheKey(product, dayNumber);
 
-          if (day != null) {
-            Aggregation agg = getAggregationForDay(product, dayNum);
-            if (agg.getMaxPrice() > max) {
-              max = agg.getMaxPrice();
-            }
-          } else if (persistence != null) {
-
-            final double[] dayMax = {-1};
-            persistence.streamEvents(
-                dayNum,
-                e -> {
-                  if (e.getProduct().equals(product)) {
-                    if (e.getPrice() > dayMax[0]) {
-                      dayMax[0] = e.getPrice();
-                    }
-                  }
-                });
-            if (dayMax[0] > max) max = dayMax[0];
-          }
-        }
+    cacheLock.lock();
+    try {
+      Aggregation cached = aggregationCache.get(cacheKey);
+      if (cached != null) {
+        return CompletableFuture.completedFuture(cached);
       }
-      return max;
     } finally {
-      readLock.unlock();
+      cacheLock.unlock();
     }
+
+    return persistence
+        .async()
+        .readAggregation(dayNumber, product)
+        .thenApply(
+            agg -> {
+              cacheAggregation(cacheKey, agg);
+              return agg;
+            });
   }
 
-  public List<Event> filterEvents(int daysAgo, Set<String> products) throws IOException {
+  public CompletableFuture<List<Event>> filterEventsAsync(int daysAgo, Set<String> products) {
+    int dayNum;
     readLock.lock();
     try {
-      if (daysAgo < 1 || daysAgo > D) return null;
+      if (daysAgo < 1 || daysAgo > D) return CompletableFuture.completedFuture(null);
 
-      int dayNum = currentDayNumber - daysAgo;
-      if (dayNum < 1) return null;
+      dayNum = currentDayNumber - daysAgo;
+      if (dayNum < 1) return CompletableFuture.completedFuture(null);
 
-      DaySeries day = getFromCache(dayNum);
+      DaySeries day;
+      cacheLock.lock();
+      try {
+        day = getFromCache(dayNum);
+      } finally {
+        cacheLock.unlock();
+      }
 
       if (day != null) {
-        return day.getEventsByProducts(products);
+        return CompletableFuture.completedFuture(day.getEventsByProducts(products));
       }
 
-      if (persistence == null) return null;
+      if (persistence == null) return CompletableFuture.completedFuture(null);
 
-      boolean exists = persistence.daySeriesExists(dayNum);
-      if (!exists) return null;
-
-      java.util.List<Event> filtered = new java.util.ArrayList<>();
-      persistence.streamEvents(
-          dayNum,
-          e -> {
-            if (products.contains(e.getProduct())) {
-              filtered.add(e);
-            }
-          });
-      return filtered;
+      if (!summaryHasAny(dayNum, products)) {
+        return CompletableFuture.completedFuture(
+            daySummaries.containsKey(dayNum) ? new ArrayList<>() : null);
+      }
     } finally {
       readLock.unlock();
     }
+
+    return persistence.async().readEvents(dayNum, products);
+  }
+
+  private boolean summaryHasAny(int dayNum, Set<String> products) {
+    Map<String, Aggregation> summary = daySummaries.get(dayNum);
+    if (summary == null) {
+      return true;
+    }
+    for (String product : products) {
+      if (summary.containsKey(product)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   public boolean waitForSimultaneous(String p1, String p2) throws InterruptedException {
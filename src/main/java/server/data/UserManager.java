@@ -5,100 +5,72 @@ import common.model.User;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
 import server.persistence.PersistenceManager;
 
 public class UserManager {
 
-  private final Map<String, User> users;
+  private final Map<String, User> users = new ConcurrentHashMap<>();
 
   private final PersistenceManager persistence;
 
-  private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-  private final Lock readLock = rwLock.readLock();
-  private final Lock writeLock = rwLock.writeLock();
-
-  public UserManager(PersistenceManager persistence) {
+  public UserManager(PersistenceManager persistence) throws IOException {
     this.persistence = persistence;
-    this.users = new HashMap<>();
-  }
-
-  public UserManager(PersistenceManager persistence, boolean recover) throws IOException {
-    this.persistence = persistence;
-    if (recover && persistence != null) {
-      this.users = new HashMap<>(persistence.loadUsers());
-      Logger.log("UserManager", "Recuperados " + users.size() + " utilizadores do disco");
-    } else {
-      this.users = new HashMap<>();
+    if (persistence != null) {
+      users.putAll(persistence.loadUsers());
+      Logger.log("UserManager", "Carregados " + users.size() + " utilizadores do disco");
     }
   }
 
   public boolean register(String username, String password) throws IOException {
-    writeLock.lock();
-    try {
+    User user = new User(username, password);
+    if (users.putIfAbsent(username, user) != null) {
+      return false;
+    }
 
-      if (users.containsKey(username)) {
-        return false;
+    if (persistence != null) {
+      boolean compact;
+      try {
+        compact = persistence.appendUser(user);
+      } catch (IOException e) {
+        users.remove(username, user);
+        throw e;
       }
-
-      User user = new User(username, password);
-      users.put(username, user);
-
-      if (persistence != null) {
-        persistence.saveUsers(new HashMap<>(users));
+      if (compact) {
+        persistence.compactUsers(this::snapshot);
       }
-
-      return true;
-    } finally {
-      writeLock.unlock();
     }
+
+    return true;
   }
 
-  public User authenticate(String username, String password) {
-    readLock.lock();
-    try {
-      User user = users.get(username);
-      if (user == null) {
-        return null;
-      }
+  private Map<String, User> snapshot() {
+    return new HashMap<>(users);
+  }
 
-      if (user.checkPassword(password)) {
-        return user;
-      }
+  public User authenticate(String username, String password) {
+    User user = users.get(username);
+    if (user == null) {
       return null;
-    } finally {
-      readLock.unlock();
     }
+
+    if (user.checkPassword(password)) {
+      return user;
+    }
+    return null;
   }
 
   public boolean exists(String username) {
-    readLock.lock();
-    try {
-      return users.containsKey(username);
-    } finally {
-      readLock.unlock();
-    }
+    return users.containsKey(username);
   }
 
   public int size() {
-    readLock.lock();
-    try {
-      return users.size();
-    } finally {
-      readLock.unlock();
-    }
+    return users.size();
   }
 
   public void save() throws IOException {
     if (persistence == null) return;
 
-    readLock.lock();
-    try {
-      persistence.saveUsers(users);
-    } finally {
-      readLock.unlock();
-    }
+    persistence.compactUsers(this::snapshot);
   }
 }
@@ -0,0 +1,263 @@
+package server.persistence;
+
+import common.model.Aggregation;
+import common.model.Event;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+public class AsyncDayStore {
+
+  private static final int TAIL_READ_BYTES = 64 * 1024;
+
+  private final PersistenceManager persistence;
+  private final DayFileHandles handles;
+  private final ExecutorService ioPool;
+
+  AsyncDayStore(PersistenceManager persistence, DayFileHandles handles, ExecutorService ioPool) {
+    this.persistence = persistence;
+    this.handles = handles;
+    this.ioPool = ioPool;
+  }
+
+  public CompletableFuture<List<Event>> readEvents(int dayNumber, Set<String> products) {
+    DayFileHandles.Handle handle;
+    AsynchronousFileChannel channel;
+    try {
+      handle = handles.acquire(dayNumber);
+      if (handle == null) {
+        return CompletableFuture.completedFuture(null);
+      }
+      channel = open(handle);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    CompletableFuture<List<Event>> result =
+        directory(handle, channel)
+            .thenCompose(
+                directory -> {
+                  if (directory == null) {
+                    return legacyEvents(dayNumber, products);
+                  }
+                  return readSegments(channel, directory, products);
+                });
+    return result.whenComplete((events, ex) -> handle.close());
+  }
+
+  public CompletableFuture<Aggregation> readAggregation(int dayNumber, String product) {
+    DayFileHandles.Handle handle;
+    AsynchronousFileChannel channel;
+    try {
+      handle = handles.acquire(dayNumber);
+      if (handle == null) {
+        return CompletableFuture.completedFuture(Aggregation.empty(product, dayNumber));
+      }
+      channel = open(handle);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    CompletableFuture<Aggregation> result =
+        directory(handle, channel)
+            .thenCompose(
+                directory -> {
+                  if (directory == null) {
+                    return legacyEvents(dayNumber, Set.of(product))
+                        .thenApply(events -> aggregate(product, dayNumber, events));
+                  }
+                  DayFile.Segment segment = directory.segments.get(product);
+                  if (segment == null) {
+                    return CompletableFuture.completedFuture(
+                        Aggregation.empty(product, dayNumber));
+                  }
+                  return CompletableFuture.completedFuture(
+                      new Aggregation(
+                          product,
+                          dayNumber,
+                          segment.totalQuantity,
+                          segment.totalVolume,
+                          segment.maxPrice,
+                          segment.eventCount));
+                });
+    return result.whenComplete((agg, ex) -> handle.close());
+  }
+
+  private AsynchronousFileChannel open(DayFileHandles.Handle handle) throws IOException {
+    try {
+      return handle.asyncChannel(ioPool);
+    } catch (IOException e) {
+      handle.close();
+      throw e;
+    }
+  }
+
+  private CompletableFuture<DayFile.Directory> directory(
+      DayFileHandles.Handle handle, AsynchronousFileChannel channel) {
+    return handle.asyncDirectory(() -> loadDirectory(channel));
+  }
+
+  private CompletableFuture<DayFile.Directory> loadDirectory(AsynchronousFileChannel channel) {
+    long size;
+    try {
+      size = channel.size();
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    if (size < DayFile.HEADER_BYTES + DayFile.TRAILER_BYTES) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    int tailLength = (int) Math.min(size, TAIL_READ_BYTES);
+    long tailStart = size - tailLength;
+
+    return read(channel, 0, DayFile.HEADER_BYTES)
+        .thenCompose(
+            header -> {
+              if (DayFile.getInt(header, 0) != DayFile.MAGIC) {
+                return CompletableFuture.completedFuture(null);
+              }
+              return read(channel, tailStart, tailLength)
+                  .thenCompose(tail -> readDirectory(channel, header, tail, tailStart));
+            });
+  }
+
+  private CompletableFuture<DayFile.Directory> readDirectory(
+      AsynchronousFileChannel channel, byte[] header, byte[] tail, long tailStart) {
+    int t = tail.length - DayFile.TRAILER_BYTES;
+    long dirOffset = DayFile.getLong(tail, t);
+    int dirLength = DayFile.getInt(tail, t + 8);
+    if (DayFile.getInt(tail, t + 12) != DayFile.MAGIC) {
+      return CompletableFuture.failedFuture(
+          new IOException("Ficheiro de dia corrompido (trailer inválido)"));
+    }
+
+    CompletableFuture<byte[]> dirData;
+    if (dirOffset >= tailStart) {
+      int from = (int) (dirOffset - tailStart);
+      byte[] data = new byte[dirLength];
+      System.arraycopy(tail, from, data, 0, dirLength);
+      dirData = CompletableFuture.completedFuture(data);
+    } else {
+      dirData = read(channel, dirOffset, dirLength);
+    }
+
+    return dirData.thenApply(
+        data -> {
+          try {
+            return DayFile.parseDirectory(header, data);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        });
+  }
+
+  private CompletableFuture<List<Event>> readSegments(
+      AsynchronousFileChannel channel, DayFile.Directory directory, Collection<String> products) {
+    List<CompletableFuture<List<DayFile.SeqEvent>>> parts = new ArrayList<>();
+    for (String product : products) {
+      DayFile.Segment segment = directory.segments.get(product);
+      if (segment == null) {
+        continue;
+      }
+      for (DayFile.BlockRef block : segment.blocks) {
+        parts.add(
+            read(channel, block.offset, block.length)
+                .thenApply(
+                    data -> {
+                      try {
+                        DayFile.verifyBlock(block, data);
+                      } catch (IOException e) {
+                        throw new CompletionException(e);
+                      }
+                      List<DayFile.SeqEvent> decoded = new ArrayList<>(block.count);
+                      DayFile.decodeBlock(segment.product, data, block.count, decoded);
+                      return decoded;
+                    }));
+      }
+    }
+
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            v -> {
+              List<DayFile.SeqEvent> found = new ArrayList<>();
+              for (CompletableFuture<List<DayFile.SeqEvent>> part : parts) {
+                found.addAll(part.join());
+              }
+              found.sort((a, b) -> Integer.compare(a.seq, b.seq));
+
+              List<Event> events = new ArrayList<>(found.size());
+              for (DayFile.SeqEvent se : found) {
+                events.add(se.event);
+              }
+              return events;
+            });
+  }
+
+  private CompletableFuture<List<Event>> legacyEvents(int dayNumber, Set<String> products) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            List<Event> events = new ArrayList<>();
+            persistence.streamEvents(dayNumber, products, events::add);
+            return events;
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          }
+        },
+        ioPool);
+  }
+
+  private static Aggregation aggregate(String product, int dayNumber, List<Event> events) {
+    int quantity = 0;
+    double volume = 0;
+    double max = -1;
+    for (Event e : events) {
+      quantity += e.getQuantity();
+      volume += e.getValue();
+      if (e.getPrice() > max) {
+        max = e.getPrice();
+      }
+    }
+    return new Aggregation(product, dayNumber, quantity, volume, max, events.size());
+  }
+
+  private static CompletableFuture<byte[]> read(
+      AsynchronousFileChannel channel, long position, int length) {
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    byte[] data = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+
+    channel.read(
+        buffer,
+        position,
+        null,
+        new CompletionHandler<Integer, Void>() {
+          @Override
+          public void completed(Integer n, Void attachment) {
+            if (n < 0) {
+              future.completeExceptionally(new EOFException("Fim inesperado do ficheiro de dia"));
+            } else if (buffer.hasRemaining()) {
+              channel.read(buffer, position + buffer.position(), null, this);
+            } else {
+              future.complete(data);
+            }
+          }
+
+          @Override
+          public void failed(Throwable exc, Void attachment) {
+            future.completeExceptionally(exc);
+          }
+        });
+    return future;
+  }
+}
@@ -0,0 +1,183 @@
+package server.persistence;
+
+import common.Logger;
+import common.model.Event;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class CheckpointStore {
+
+  private static final int MAGIC = 0x53444343;
+
+  public static class Checkpoint {
+    public final List<Event> events;
+    public final String lastProduct;
+    public final int consecutiveCount;
+
+    Checkpoint(List<Event> events, String lastProduct, int consecutiveCount) {
+      this.events = events;
+      this.lastProduct = lastProduct;
+      this.consecutiveCount = consecutiveCount;
+    }
+  }
+
+  private final File dir;
+
+  public CheckpointStore(File dir) {
+    this.dir = dir;
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+  }
+
+  private File fileFor(int dayNumber) {
+    return new File(dir, "day_" + dayNumber + ".ckpt");
+  }
+
+  public void append(
+      int dayNumber, int from, List<Event> events, String lastProduct, int consecutiveCount)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + events.size() * 24);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(MAGIC);
+    out.writeInt(from);
+    out.writeInt(events.size());
+    for (Event e : events) {
+      out.writeUTF(e.getProduct());
+      out.writeInt(e.getQuantity());
+      out.writeDouble(e.getPrice());
+    }
+    out.writeBoolean(lastProduct != null);
+    if (lastProduct != null) {
+      out.writeUTF(lastProduct);
+    }
+    out.writeInt(consecutiveCount);
+    out.flush();
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeLong(crc.getValue());
+    out.flush();
+
+    try (FileChannel channel =
+        FileChannel.open(
+            fileFor(dayNumber).toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND)) {
+      ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+      channel.force(false);
+    }
+  }
+
+  public Checkpoint load(int dayNumber) throws IOException {
+    List<Event> events = new ArrayList<>();
+    String lastProduct = null;
+    int consecutiveCount = 0;
+
+    File file = fileFor(dayNumber);
+    if (!file.exists()) {
+      return new Checkpoint(events, null, 0);
+    }
+
+    long validBytes = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream copy = new DataOutputStream(bytes);
+        List<Event> increment = new ArrayList<>();
+        String incLast;
+        int incCount;
+        long crc;
+
+        try {
+          int magic = in.readInt();
+          int from = in.readInt();
+          int n = in.readInt();
+          if (magic != MAGIC || from != events.size() || n < 0) {
+            break;
+          }
+          copy.writeInt(magic);
+          copy.writeInt(from);
+          copy.writeInt(n);
+          for (int i = 0; i < n; i++) {
+            String product = in.readUTF();
+            int quantity = in.readInt();
+            double price = in.readDouble();
+            copy.writeUTF(product);
+            copy.writeInt(quantity);
+            copy.writeDouble(price);
+            increment.add(new Event(product, quantity, price));
+          }
+          boolean hasLast = in.readBoolean();
+          copy.writeBoolean(hasLast);
+          incLast = hasLast ? in.readUTF() : null;
+          if (hasLast) {
+            copy.writeUTF(incLast);
+          }
+          incCount = in.readInt();
+          copy.writeInt(incCount);
+          crc = in.readLong();
+        } catch (EOFException | UTFDataFormatException e) {
+          break;
+        }
+
+        copy.flush();
+        CRC32 expected = new CRC32();
+        expected.update(bytes.toByteArray());
+        if (expected.getValue() != crc) {
+          break;
+        }
+
+        events.addAll(increment);
+        lastProduct = incLast;
+        consecutiveCount = incCount;
+        validBytes += bytes.size() + 8;
+      }
+    }
+
+    if (validBytes < file.length()) {
+      Logger.error("Checkpoint", "Checkpoint incompleto no dia " + dayNumber + ", a truncar");
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(validBytes);
+        channel.force(true);
+      }
+    }
+
+    return new Checkpoint(events, lastProduct, consecutiveCount);
+  }
+
+  public void deleteDay(int dayNumber) {
+    fileFor(dayNumber).delete();
+  }
+
+  public void deleteAllExcept(int dayNumber) {
+    File keep = fileFor(dayNumber);
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".ckpt"));
+    if (files != null) {
+      for (File f : files) {
+        if (!f.equals(keep)) {
+          f.delete();
+        }
+      }
+    }
+  }
+}
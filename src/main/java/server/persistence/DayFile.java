@@ -0,0 +1,350 @@
+package server.persistence;
+
+import common.model.Event;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+public class DayFile {
+
+  public static final int MAGIC = 0x53444631;
+  public static final int VERSION = 3;
+
+  public static final int BLOCK_EVENTS = 4096;
+
+  static final int EVENT_BYTES = 4 + 4 + 8;
+  static final int HEADER_BYTES = 4 + 4 + 4 + 1 + 4;
+  static final int TRAILER_BYTES = 8 + 4 + 4;
+
+  private static final int TAIL_READ_BYTES = 64 * 1024;
+
+  public static class BlockRef {
+    public final long offset;
+    public final int length;
+    public final int count;
+    public final long crc;
+
+    BlockRef(long offset, int length, int count, long crc) {
+      this.offset = offset;
+      this.length = length;
+      this.count = count;
+      this.crc = crc;
+    }
+  }
+
+  public static class Segment {
+    public final String product;
+    public final int eventCount;
+    public final int totalQuantity;
+    public final double totalVolume;
+    public final double maxPrice;
+    public final List<BlockRef> blocks;
+
+    Segment(
+        String product,
+        int eventCount,
+        int totalQuantity,
+        double totalVolume,
+        double maxPrice,
+        List<BlockRef> blocks) {
+      this.product = product;
+      this.eventCount = eventCount;
+      this.totalQuantity = totalQuantity;
+      this.totalVolume = totalVolume;
+      this.maxPrice = maxPrice;
+      this.blocks = blocks;
+    }
+  }
+
+  public static class Directory {
+    public final int dayNumber;
+    public final boolean closed;
+    public final int eventCount;
+    public final Map<String, Segment> segments;
+
+    Directory(int dayNumber, boolean closed, int eventCount, Map<String, Segment> segments) {
+      this.dayNumber = dayNumber;
+      this.closed = closed;
+      this.eventCount = eventCount;
+      this.segments = segments;
+    }
+  }
+
+  public static class SeqEvent {
+    public final int seq;
+    public final Event event;
+
+    SeqEvent(int seq, Event event) {
+      this.seq = seq;
+      this.event = event;
+    }
+  }
+
+  private DayFile() {}
+
+  public static void write(DataOutputStream out, int dayNumber, boolean closed, List<Event> events)
+      throws IOException {
+
+    Map<String, List<Integer>> byProduct = new LinkedHashMap<>();
+    for (int i = 0; i < events.size(); i++) {
+      byProduct.computeIfAbsent(events.get(i).getProduct(), k -> new ArrayList<>()).add(i);
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(dayNumber);
+    out.writeBoolean(closed);
+    out.writeInt(events.size());
+
+    long offset = HEADER_BYTES;
+    byte[] block = new byte[BLOCK_EVENTS * EVENT_BYTES];
+    ByteArrayOutputStream dirBytes = new ByteArrayOutputStream();
+    DataOutputStream dir = new DataOutputStream(dirBytes);
+    dir.writeInt(byProduct.size());
+
+    for (Map.Entry<String, List<Integer>> entry : byProduct.entrySet()) {
+      List<Integer> seqs = entry.getValue();
+
+      int totalQuantity = 0;
+      double totalVolume = 0;
+      double maxPrice = -1;
+      for (int seq : seqs) {
+        Event e = events.get(seq);
+        totalQuantity += e.getQuantity();
+        totalVolume += e.getValue();
+        if (e.getPrice() > maxPrice) {
+          maxPrice = e.getPrice();
+        }
+      }
+
+      int nBlocks = (seqs.size() + BLOCK_EVENTS - 1) / BLOCK_EVENTS;
+      dir.writeUTF(entry.getKey());
+      dir.writeInt(seqs.size());
+      dir.writeInt(totalQuantity);
+      dir.writeDouble(totalVolume);
+      dir.writeDouble(maxPrice);
+      dir.writeInt(nBlocks);
+
+      for (int b = 0; b < nBlocks; b++) {
+        int from = b * BLOCK_EVENTS;
+        int to = Math.min(from + BLOCK_EVENTS, seqs.size());
+        int length = (to - from) * EVENT_BYTES;
+        for (int i = from, pos = 0; i < to; i++, pos += EVENT_BYTES) {
+          int seq = seqs.get(i);
+          Event e = events.get(seq);
+          putInt(block, pos, seq);
+          putInt(block, pos + 4, e.getQuantity());
+          putLong(block, pos + 8, Double.doubleToLongBits(e.getPrice()));
+        }
+        out.write(block, 0, length);
+
+        dir.writeLong(offset);
+        dir.writeInt(length);
+        dir.writeInt(to - from);
+        dir.writeInt((int) crc32c(block, 0, length));
+        offset += length;
+      }
+    }
+    dir.flush();
+    dir.writeInt((int) crc32c(dirBytes.toByteArray(), 0, dirBytes.size()));
+
+    byte[] dirData = dirBytes.toByteArray();
+    out.write(dirData);
+    out.writeLong(offset);
+    out.writeInt(dirData.length);
+    out.writeInt(MAGIC);
+  }
+
+  public static boolean isBlockFormat(FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_BYTES + TRAILER_BYTES) {
+      return false;
+    }
+    return getInt(read(channel, 0, 4), 0) == MAGIC;
+  }
+
+  public static Directory readDirectory(FileChannel channel) throws IOException {
+    long size = channel.size();
+    int tailLength = (int) Math.min(size, TAIL_READ_BYTES);
+    long tailStart = size - tailLength;
+    byte[] tail = read(channel, tailStart, tailLength);
+
+    int t = tailLength - TRAILER_BYTES;
+    long dirOffset = getLong(tail, t);
+    int dirLength = getInt(tail, t + 8);
+    if (getInt(tail, t + 12) != MAGIC) {
+      throw new IOException("Ficheiro de dia corrompido (trailer inválido)");
+    }
+
+    byte[] header =
+        tailStart == 0
+            ? Arrays.copyOfRange(tail, 0, HEADER_BYTES)
+            : read(channel, 0, HEADER_BYTES);
+    byte[] dirData =
+        dirOffset >= tailStart
+            ? Arrays.copyOfRange(
+                tail, (int) (dirOffset - tailStart), (int) (dirOffset - tailStart) + dirLength)
+            : read(channel, dirOffset, dirLength);
+
+    return parseDirectory(header, dirData);
+  }
+
+  static Directory parseDirectory(byte[] header, byte[] dirData) throws IOException {
+    DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+    if (h.readInt() != MAGIC) {
+      throw new IOException("Ficheiro de dia com formato desconhecido");
+    }
+    int version = h.readInt();
+    if (version < 2 || version > VERSION) {
+      throw new IOException("Versão de ficheiro de dia não suportada: " + version);
+    }
+    boolean checksummed = version >= 3;
+    int dayNumber = h.readInt();
+    boolean closed = h.readBoolean();
+    int eventCount = h.readInt();
+
+    if (checksummed) {
+      int dirLength = dirData.length - 4;
+      if (dirLength < 0 || (int) crc32c(dirData, 0, dirLength) != getInt(dirData, dirLength)) {
+        throw new IOException("Directório do dia " + dayNumber + " corrompido");
+      }
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(dirData));
+    int nProducts = in.readInt();
+    Map<String, Segment> segments = new LinkedHashMap<>();
+    for (int p = 0; p < nProducts; p++) {
+      String product = in.readUTF();
+      int count = in.readInt();
+      int totalQuantity = in.readInt();
+      double totalVolume = in.readDouble();
+      double maxPrice = in.readDouble();
+      int nBlocks = in.readInt();
+      List<BlockRef> blocks = new ArrayList<>(nBlocks);
+      for (int b = 0; b < nBlocks; b++) {
+        long offset = in.readLong();
+        int length = in.readInt();
+        int blockCount = in.readInt();
+        long crc = checksummed ? in.readInt() & 0xFFFFFFFFL : -1;
+        blocks.add(new BlockRef(offset, length, blockCount, crc));
+      }
+      segments.put(
+          product, new Segment(product, count, totalQuantity, totalVolume, maxPrice, blocks));
+    }
+    return new Directory(dayNumber, closed, eventCount, segments);
+  }
+
+  public static byte[] readBlock(FileChannel channel, BlockRef block) throws IOException {
+    byte[] data = read(channel, block.offset, block.length);
+    verifyBlock(block, data);
+    return data;
+  }
+
+  public static void verifyBlock(BlockRef block, byte[] data) throws IOException {
+    if (block.crc >= 0 && crc32c(data, 0, data.length) != block.crc) {
+      throw new IOException("Bloco corrompido no offset " + block.offset);
+    }
+  }
+
+  static long crc32c(byte[] data, int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
+
+  static byte[] read(FileChannel channel, long position, int length) throws IOException {
+    byte[] data = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new EOFException("Fim inesperado do ficheiro de dia");
+      }
+    }
+    return data;
+  }
+
+  public static void decodeBlock(String product, byte[] data, int count, Event[] target) {
+    for (int i = 0, pos = 0; i < count; i++, pos += EVENT_BYTES) {
+      int seq = getInt(data, pos);
+      int quantity = getInt(data, pos + 4);
+      double price = Double.longBitsToDouble(getLong(data, pos + 8));
+      target[seq] = new Event(product, quantity, price);
+    }
+  }
+
+  public static void decodeBlock(String product, byte[] data, int count, List<SeqEvent> target) {
+    for (int i = 0, pos = 0; i < count; i++, pos += EVENT_BYTES) {
+      int seq = getInt(data, pos);
+      int quantity = getInt(data, pos + 4);
+      double price = Double.longBitsToDouble(getLong(data, pos + 8));
+      target.add(new SeqEvent(seq, new Event(product, quantity, price)));
+    }
+  }
+
+  public static List<Event> readEvents(FileChannel channel, Directory directory)
+      throws IOException {
+    Event[] events = new Event[directory.eventCount];
+    for (Segment segment : directory.segments.values()) {
+      for (BlockRef block : segment.blocks) {
+        decodeBlock(segment.product, readBlock(channel, block), block.count, events);
+      }
+    }
+    return Arrays.asList(events);
+  }
+
+  public static List<Event> readEvents(
+      FileChannel channel, Directory directory, Collection<String> products) throws IOException {
+    List<SeqEvent> found = new ArrayList<>();
+    for (String product : products) {
+      Segment segment = directory.segments.get(product);
+      if (segment == null) {
+        continue;
+      }
+      for (BlockRef block : segment.blocks) {
+        decodeBlock(segment.product, readBlock(channel, block), block.count, found);
+      }
+    }
+    found.sort((a, b) -> Integer.compare(a.seq, b.seq));
+
+    List<Event> events = new ArrayList<>(found.size());
+    for (SeqEvent se : found) {
+      events.add(se.event);
+    }
+    return events;
+  }
+
+  static int getInt(byte[] b, int pos) {
+    return ((b[pos] & 0xFF) << 24)
+        | ((b[pos + 1] & 0xFF) << 16)
+        | ((b[pos + 2] & 0xFF) << 8)
+        | (b[pos + 3] & 0xFF);
+  }
+
+  static void putInt(byte[] b, int pos, int v) {
+    b[pos] = (byte) (v >>> 24);
+    b[pos + 1] = (byte) (v >>> 16);
+    b[pos + 2] = (byte) (v >>> 8);
+    b[pos + 3] = (byte) v;
+  }
+
+  static void putLong(byte[] b, int pos, long v) {
+    putInt(b, pos, (int) (v >>> 32));
+    putInt(b, pos + 4, (int) v);
+  }
+
+  static long getLong(byte[] b, int pos) {
+    return ((long) getInt(b, pos) << 32) | (getInt(b, pos + 4) & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,219 @@
+package server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+class DayFileHandles {
+
+  static class Handle implements AutoCloseable {
+    final int dayNumber;
+    final FileChannel channel;
+    private final DayFileHandles owner;
+
+    private int refs;
+    private boolean evicted;
+    private volatile DayFile.Directory directory;
+    private volatile Boolean blockFormat;
+    private AsynchronousFileChannel asyncChannel;
+    private CompletableFuture<DayFile.Directory> asyncDirectory;
+
+    Handle(DayFileHandles owner, int dayNumber, FileChannel channel) {
+      this.owner = owner;
+      this.dayNumber = dayNumber;
+      this.channel = channel;
+    }
+
+    boolean isBlockFormat() throws IOException {
+      Boolean b = blockFormat;
+      if (b == null) {
+        b = DayFile.isBlockFormat(channel);
+        blockFormat = b;
+      }
+      return b;
+    }
+
+    DayFile.Directory directory() throws IOException {
+      DayFile.Directory d = directory;
+      if (d == null) {
+        d = DayFile.readDirectory(channel);
+        directory = d;
+      }
+      return d;
+    }
+
+    AsynchronousFileChannel asyncChannel(ExecutorService ioPool) throws IOException {
+      owner.lock.lock();
+      try {
+        if (asyncChannel == null) {
+          asyncChannel =
+              AsynchronousFileChannel.open(
+                  owner.fileFor(dayNumber).toPath(), Set.of(StandardOpenOption.READ), ioPool);
+        }
+        return asyncChannel;
+      } finally {
+        owner.lock.unlock();
+      }
+    }
+
+    CompletableFuture<DayFile.Directory> asyncDirectory(
+        Supplier<CompletableFuture<DayFile.Directory>> loader) {
+      owner.lock.lock();
+      try {
+        if (asyncDirectory == null || asyncDirectory.isCompletedExceptionally()) {
+          asyncDirectory = loader.get();
+        }
+        return asyncDirectory;
+      } finally {
+        owner.lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      owner.release(this);
+    }
+  }
+
+  private final File seriesDir;
+  private final int capacity;
+
+  private final Map<Integer, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final Lock lock = new ReentrantLock();
+
+  DayFileHandles(File seriesDir, int capacity) {
+    this.seriesDir = seriesDir;
+    this.capacity = capacity;
+  }
+
+  File fileFor(int dayNumber) {
+    return new File(seriesDir, "day_" + dayNumber + ".dat");
+  }
+
+  Handle acquire(int dayNumber) throws IOException {
+    List<Handle> toClose = new ArrayList<>();
+    lock.lock();
+    try {
+      Handle handle = handles.get(dayNumber);
+      if (handle == null) {
+        FileChannel channel;
+        try {
+          channel = FileChannel.open(fileFor(dayNumber).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+          return null;
+        }
+        handle = new Handle(this, dayNumber, channel);
+        handles.put(dayNumber, handle);
+
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > capacity && it.hasNext()) {
+          Handle eldest = it.next();
+          it.remove();
+          eldest.evicted = true;
+          if (eldest.refs == 0) {
+            toClose.add(eldest);
+          }
+        }
+      }
+      handle.refs++;
+      return handle;
+    } finally {
+      lock.unlock();
+      closeQuietly(toClose);
+    }
+  }
+
+  boolean isOpen(int dayNumber) {
+    lock.lock();
+    try {
+      return handles.containsKey(dayNumber);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void invalidate(int dayNumber) {
+    List<Handle> toClose = new ArrayList<>();
+    lock.lock();
+    try {
+      Handle handle = handles.remove(dayNumber);
+      if (handle != null) {
+        handle.evicted = true;
+        if (handle.refs == 0) {
+          toClose.add(handle);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    closeQuietly(toClose);
+  }
+
+  void invalidateAll() {
+    List<Handle> toClose = new ArrayList<>();
+    lock.lock();
+    try {
+      for (Handle handle : handles.values()) {
+        handle.evicted = true;
+        if (handle.refs == 0) {
+          toClose.add(handle);
+        }
+      }
+      handles.clear();
+    } finally {
+      lock.unlock();
+    }
+    closeQuietly(toClose);
+  }
+
+  private void release(Handle handle) {
+    boolean close;
+    lock.lock();
+    try {
+      handle.refs--;
+      close = handle.evicted && handle.refs == 0;
+    } finally {
+      lock.unlock();
+    }
+    if (close) {
+      closeQuietly(List.of(handle));
+    }
+  }
+
+  private static void closeQuietly(List<Handle> toClose) {
+    for (Handle handle : toClose) {
+      try {
+        handle.channel.close();
+      } catch (IOException ignored) {
+      }
+      AsynchronousFileChannel async;
+      handle.owner.lock.lock();
+      try {
+        async = handle.asyncChannel;
+      } finally {
+        handle.owner.lock.unlock();
+      }
+      if (async != null) {
+        try {
+          async.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+}
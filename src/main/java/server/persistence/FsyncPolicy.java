@@ -0,0 +1,20 @@
+package server.persistence;
+
+public enum FsyncPolicy {
+  ALWAYS,
+  BATCH,
+  NEVER;
+
+  public static FsyncPolicy parse(String value) {
+    switch (value.toLowerCase()) {
+      case "always":
+        return ALWAYS;
+      case "batch":
+        return BATCH;
+      case "never":
+        return NEVER;
+      default:
+        throw new IllegalArgumentException("Política de fsync desconhecida: " + value);
+    }
+  }
+}
@@ -1,13 +1,28 @@
 package server.persistence;
 
+import common.model.Aggregation;
 import common.model.Event;
 import common.model.User;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
 import server.data.DaySeries;
+import server.data.ProductDictionary;
 
 public class PersistenceManager {
 
@@ -16,9 +31,36 @@ public class PersistenceManager {
   private final File usersFile;
   private final File stateFile;
 
+  private static final int PARALLEL_DECODE_MIN_EVENTS = 8 * DayFile.BLOCK_EVENTS;
+
+  private static final int MAX_OPEN_DAY_FILES = 64;
+
+  private static final int FILE_MAGIC = 0x53444643;
+
+  private final FsyncPolicy fsyncPolicy;
+
+  private final Set<File> dirtyDirs = new HashSet<>();
+
   private final Lock lock = new ReentrantLock();
 
+  private final ExecutorService decodePool;
+
+  private final DayFileHandles handles;
+
+  private final AsyncDayStore asyncStore;
+
+  private final UserLog userLog;
+
+  private final ProductLog productLog;
+
+  private final ProductDictionary products;
+
   public PersistenceManager(String dataPath) throws IOException {
+    this(dataPath, FsyncPolicy.BATCH);
+  }
+
+  public PersistenceManager(String dataPath, FsyncPolicy fsyncPolicy) throws IOException {
+    this.fsyncPolicy = fsyncPolicy;
     this.dataDir = new File(dataPath);
     this.seriesDir = new File(dataDir, "series");
     this.usersFile = new File(dataDir, "users.dat");
@@ -27,108 +69,365 @@ public class PersistenceManager {
     if (!seriesDir.exists()) {
       seriesDir.mkdirs();
     }
+    deleteTempFiles(dataDir);
+    deleteTempFiles(seriesDir);
+
+    this.userLog = new UserLog(new File(dataDir, "users.log"), fsyncPolicy != FsyncPolicy.NEVER);
+    this.productLog =
+        new ProductLog(new File(dataDir, "products.dat"), fsyncPolicy != FsyncPolicy.NEVER);
+    this.products = new ProductDictionary(productLog.recovered(), productLog);
+
+    this.handles = new DayFileHandles(seriesDir, MAX_OPEN_DAY_FILES);
+
+    AtomicInteger threadCount = new AtomicInteger();
+    this.decodePool =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            r -> {
+              Thread t = new Thread(r, "day-decoder-" + threadCount.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+
+    AtomicInteger ioThreadCount = new AtomicInteger();
+    ExecutorService ioPool =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            r -> {
+              Thread t = new Thread(r, "day-io-" + ioThreadCount.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    this.asyncStore = new AsyncDayStore(this, handles, ioPool);
   }
 
   public PersistenceManager() throws IOException {
     this("data");
   }
 
-  public void saveDaySeries(DaySeries day) throws IOException {
-    lock.lock();
+  public AsyncDayStore async() {
+    return asyncStore;
+  }
+
+  public ProductDictionary products() {
+    return products;
+  }
+
+  private interface FileWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private static void deleteTempFiles(File dir) {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  private void writeAtomically(File target, FileWriter writer) throws IOException {
+    File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+
+    try (FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+      writer.write(out);
+      out.flush();
+      if (fsyncPolicy != FsyncPolicy.NEVER) {
+        fos.getChannel().force(true);
+      }
+    }
+
     try {
-      File file = new File(seriesDir, "day_" + day.getDayNumber() + ".dat");
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
 
-      try (DataOutputStream out =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      syncDirectory(target.getParentFile());
+    } else if (fsyncPolicy == FsyncPolicy.BATCH) {
+      markDirty(target.getParentFile());
+    }
+  }
 
-        out.writeInt(day.getDayNumber());
+  private void markDirty(File dir) {
+    lock.lock();
+    try {
+      dirtyDirs.add(dir);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-        out.writeBoolean(day.isClosed());
+  private void writeChecksummed(File target, FileWriter writer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    writer.write(payload);
+    payload.flush();
+
+    byte[] data = bytes.toByteArray();
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+
+    writeAtomically(
+        target,
+        out -> {
+          out.writeInt(FILE_MAGIC);
+          out.write(data);
+          out.writeInt((int) crc.getValue());
+        });
+  }
 
-        List<Event> events = day.getEvents();
-        out.writeInt(events.size());
-        for (Event e : events) {
-          out.writeUTF(e.getProduct());
-          out.writeInt(e.getQuantity());
-          out.writeDouble(e.getPrice());
-        }
+  private static DataInputStream readChecksummed(File file) throws IOException {
+    byte[] data = Files.readAllBytes(file.toPath());
+
+    if (data.length >= 8 && DayFile.getInt(data, 0) == FILE_MAGIC) {
+      int payloadLength = data.length - 8;
+      CRC32C crc = new CRC32C();
+      crc.update(data, 4, payloadLength);
+      if ((int) crc.getValue() != DayFile.getInt(data, data.length - 4)) {
+        throw new IOException("Ficheiro corrompido: " + file.getName());
       }
+      return new DataInputStream(new ByteArrayInputStream(data, 4, payloadLength));
+    }
+
+    return new DataInputStream(new ByteArrayInputStream(data));
+  }
+
+  private static void syncDirectory(File dir) {
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException ignored) {
+    }
+  }
+
+  public void sync() {
+    List<File> dirs;
+    lock.lock();
+    try {
+      dirs = new ArrayList<>(dirtyDirs);
+      dirtyDirs.clear();
     } finally {
       lock.unlock();
     }
+    for (File dir : dirs) {
+      syncDirectory(dir);
+    }
   }
 
-  public DaySeries loadDaySeries(int dayNumber) throws IOException {
+  public void saveDaySeries(DaySeries day) throws IOException {
     lock.lock();
     try {
-      File file = new File(seriesDir, "day_" + dayNumber + ".dat");
+      writeAtomically(
+          handles.fileFor(day.getDayNumber()),
+          out -> DayFile.write(out, day.getDayNumber(), day.isClosed(), day.getEvents()));
+      handles.invalidate(day.getDayNumber());
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      if (!file.exists()) {
+  public DaySeries loadDaySeries(int dayNumber) throws IOException {
+    try (DayFileHandles.Handle handle = handles.acquire(dayNumber)) {
+      if (handle == null) {
         return null;
       }
 
-      try (DataInputStream in =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (handle.isBlockFormat()) {
+        DayFile.Directory directory = handle.directory();
+        DaySeries day = new DaySeries(directory.dayNumber, products);
+        day.addEvents(decodeEvents(handle.channel, directory));
+        if (directory.closed) {
+          day.close();
+        }
+        return day;
+      }
+    }
 
-        int readDayNumber = in.readInt();
+    return loadLegacyDaySeries(handles.fileFor(dayNumber));
+  }
 
-        DaySeries day = new DaySeries(readDayNumber);
+  private List<Event> decodeEvents(FileChannel channel, DayFile.Directory directory)
+      throws IOException {
+    if (directory.eventCount < PARALLEL_DECODE_MIN_EVENTS) {
+      return DayFile.readEvents(channel, directory);
+    }
 
-        boolean closed = in.readBoolean();
+    Event[] events = new Event[directory.eventCount];
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (DayFile.Segment segment : directory.segments.values()) {
+      for (DayFile.BlockRef block : segment.blocks) {
+        tasks.add(
+            () -> {
+              DayFile.decodeBlock(
+                  segment.product, DayFile.readBlock(channel, block), block.count, events);
+              return null;
+            });
+      }
+    }
 
-        int nEvents = in.readInt();
-        for (int i = 0; i < nEvents; i++) {
-          String product = in.readUTF();
-          int quantity = in.readInt();
-          double price = in.readDouble();
-          day.addEvent(new Event(product, quantity, price));
+    try {
+      for (Future<Void> f : decodePool.invokeAll(tasks)) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Descodificação do dia interrompida");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Erro ao descodificar dia " + directory.dayNumber, e.getCause());
+    }
+
+    return Arrays.asList(events);
+  }
+
+  public Map<String, Aggregation> loadDaySummary(int dayNumber) throws IOException {
+    Map<String, Aggregation> summary = new HashMap<>();
+
+    try (DayFileHandles.Handle handle = handles.acquire(dayNumber)) {
+      if (handle == null) {
+        return null;
+      }
+
+      if (handle.isBlockFormat()) {
+        for (DayFile.Segment segment : handle.directory().segments.values()) {
+          summary.put(
+              segment.product,
+              new Aggregation(
+                  segment.product,
+                  dayNumber,
+                  segment.totalQuantity,
+                  segment.totalVolume,
+                  segment.maxPrice,
+                  segment.eventCount));
         }
+        return summary;
+      }
+    }
 
-        if (closed) {
-          day.close();
+    return loadLegacyDaySeries(handles.fileFor(dayNumber)).getSummary();
+  }
+
+  public Map<Integer, Map<String, Aggregation>> loadDaySummaries(Collection<Integer> days)
+      throws IOException {
+    List<Integer> order = new ArrayList<>(days);
+    List<Callable<Map<String, Aggregation>>> tasks = new ArrayList<>();
+    for (int dayNumber : order) {
+      tasks.add(() -> loadDaySummary(dayNumber));
+    }
+
+    Map<Integer, Map<String, Aggregation>> summaries = new HashMap<>();
+    try {
+      List<Future<Map<String, Aggregation>>> results = decodePool.invokeAll(tasks);
+      for (int i = 0; i < order.size(); i++) {
+        Map<String, Aggregation> summary = results.get(i).get();
+        if (summary != null) {
+          summaries.put(order.get(i), summary);
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Indexação dos dias interrompida");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Erro ao indexar dias", e.getCause());
+    }
+    return summaries;
+  }
 
-        return day;
+  private DaySeries loadLegacyDaySeries(File file) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+      int readDayNumber = in.readInt();
+
+      DaySeries day = new DaySeries(readDayNumber, products);
+
+      boolean closed = in.readBoolean();
+
+      int nEvents = in.readInt();
+      List<Event> events = new ArrayList<>(nEvents);
+      for (int i = 0; i < nEvents; i++) {
+        String product = in.readUTF();
+        int quantity = in.readInt();
+        double price = in.readDouble();
+        events.add(new Event(product, quantity, price));
       }
-    } finally {
-      lock.unlock();
+      day.addEvents(events);
+
+      if (closed) {
+        day.close();
+      }
+
+      return day;
     }
   }
 
   public void streamEvents(int dayNumber, Consumer<Event> processor) throws IOException {
-    lock.lock();
-    try {
-      File file = new File(seriesDir, "day_" + dayNumber + ".dat");
+    try (DayFileHandles.Handle handle = handles.acquire(dayNumber)) {
+      if (handle == null) {
+        return;
+      }
 
-      if (!file.exists()) {
+      if (handle.isBlockFormat()) {
+        decodeEvents(handle.channel, handle.directory()).forEach(processor);
         return;
       }
+    }
 
-      try (DataInputStream in =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+    streamLegacyEvents(handles.fileFor(dayNumber), null, processor);
+  }
 
-        in.readInt();
-        in.readBoolean();
+  public void streamEvents(int dayNumber, Set<String> products, Consumer<Event> processor)
+      throws IOException {
+    try (DayFileHandles.Handle handle = handles.acquire(dayNumber)) {
+      if (handle == null) {
+        return;
+      }
 
-        int nEvents = in.readInt();
+      if (handle.isBlockFormat()) {
+        DayFile.readEvents(handle.channel, handle.directory(), products).forEach(processor);
+        return;
+      }
+    }
 
-        for (int i = 0; i < nEvents; i++) {
-          String product = in.readUTF();
-          int quantity = in.readInt();
-          double price = in.readDouble();
+    streamLegacyEvents(handles.fileFor(dayNumber), products, processor);
+  }
+
+  private void streamLegacyEvents(File file, Set<String> products, Consumer<Event> processor)
+      throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+      in.readInt();
+      in.readBoolean();
+
+      int nEvents = in.readInt();
 
+      for (int i = 0; i < nEvents; i++) {
+        String product = in.readUTF();
+        int quantity = in.readInt();
+        double price = in.readDouble();
+
+        if (products == null || products.contains(product)) {
           processor.accept(new Event(product, quantity, price));
         }
       }
-    } finally {
-      lock.unlock();
+    } catch (FileNotFoundException e) {
+      return;
     }
   }
 
   public void deleteDaySeries(int dayNumber) throws IOException {
     lock.lock();
     try {
-      File file = new File(seriesDir, "day_" + dayNumber + ".dat");
+      handles.invalidate(dayNumber);
+      File file = handles.fileFor(dayNumber);
       if (file.exists()) {
         file.delete();
       }
@@ -138,8 +437,7 @@ public class PersistenceManager {
   }
 
   public boolean daySeriesExists(int dayNumber) {
-    File file = new File(seriesDir, "day_" + dayNumber + ".dat");
-    return file.exists();
+    return handles.isOpen(dayNumber) || handles.fileFor(dayNumber).exists();
   }
 
   public List<Integer> listSavedDays() throws IOException {
@@ -170,20 +468,29 @@ public class PersistenceManager {
   }
 
   public void saveUsers(Map<String, User> users) throws IOException {
-    lock.lock();
-    try {
-      try (DataOutputStream out =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(usersFile)))) {
+    compactUsers(() -> users);
+  }
 
-        out.writeInt(users.size());
-        for (User user : users.values()) {
-          out.writeUTF(user.getUsername());
-          out.writeUTF(user.getPassword());
-        }
-      }
-    } finally {
-      lock.unlock();
-    }
+  public boolean appendUser(User user) throws IOException {
+    return userLog.append(user);
+  }
+
+  public void compactUsers(Supplier<Map<String, User>> snapshot) throws IOException {
+    userLog.compact(
+        () -> {
+          Map<String, User> users = snapshot.get();
+          writeChecksummed(
+              usersFile,
+              out -> {
+                out.writeInt(users.size());
+                for (User user : users.values()) {
+                  out.writeUTF(user.getUsername());
+                  out.writeUTF(user.getPassword());
+                }
+              });
+          sync();
+          return users.size();
+        });
   }
 
   public Map<String, User> loadUsers() throws IOException {
@@ -191,21 +498,22 @@ public class PersistenceManager {
     try {
       Map<String, User> users = new HashMap<>();
 
-      if (!usersFile.exists()) {
-        return users;
-      }
-
-      try (DataInputStream in =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(usersFile)))) {
+      if (usersFile.exists()) {
+        try (DataInputStream in = readChecksummed(usersFile)) {
 
-        int nUsers = in.readInt();
-        for (int i = 0; i < nUsers; i++) {
-          String username = in.readUTF();
-          String password = in.readUTF();
-          users.put(username, new User(username, password));
+          int nUsers = in.readInt();
+          for (int i = 0; i < nUsers; i++) {
+            String username = in.readUTF();
+            String password = in.readUTF();
+            users.put(username, new User(username, password));
+          }
         }
       }
 
+      for (User user : userLog.recovered()) {
+        users.put(user.getUsername(), user);
+      }
+
       return users;
     } finally {
       lock.unlock();
@@ -233,13 +541,13 @@ public class PersistenceManager {
   public void saveState(ServerState state) throws IOException {
     lock.lock();
     try {
-      try (DataOutputStream out =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile)))) {
-
-        out.writeInt(state.currentDayNumber);
-        out.writeInt(state.D);
-        out.writeInt(state.S);
-      }
+      writeChecksummed(
+          stateFile,
+          out -> {
+            out.writeInt(state.currentDayNumber);
+            out.writeInt(state.D);
+            out.writeInt(state.S);
+          });
     } finally {
       lock.unlock();
     }
@@ -252,8 +560,7 @@ public class PersistenceManager {
         return new ServerState();
       }
 
-      try (DataInputStream in =
-          new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+      try (DataInputStream in = readChecksummed(stateFile)) {
 
         int currentDayNumber = in.readInt();
         int D = in.readInt();
@@ -269,6 +576,7 @@ public class PersistenceManager {
   public void clearAll() throws IOException {
     lock.lock();
     try {
+      handles.invalidateAll();
 
       File[] files = seriesDir.listFiles();
       if (files != null) {
@@ -277,10 +585,16 @@ public class PersistenceManager {
         }
       }
 
-      if (usersFile.exists()) usersFile.delete();
       if (stateFile.exists()) stateFile.delete();
+      products.clear();
     } finally {
       lock.unlock();
     }
+
+    userLog.compact(
+        () -> {
+          usersFile.delete();
+          return 0;
+        });
   }
 }
@@ -0,0 +1,121 @@
+package server.persistence;
+
+import common.Logger;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import server.data.ProductDictionary;
+
+class ProductLog implements ProductDictionary.Store, AutoCloseable {
+
+  private final File file;
+  private final boolean sync;
+
+  private final List<String> recovered = new ArrayList<>();
+  private final FileChannel channel;
+
+  ProductLog(File file, boolean sync) throws IOException {
+    this.file = file;
+    this.sync = sync;
+
+    long validBytes = scan();
+    this.channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    if (validBytes < channel.size()) {
+      Logger.error("ProductLog", "Dicionário de produtos incompleto, a truncar");
+      channel.truncate(validBytes);
+      channel.force(true);
+    }
+    channel.position(validBytes);
+  }
+
+  private long scan() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    long validBytes = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        int id;
+        String name;
+        long crc;
+        try {
+          id = in.readInt();
+          name = in.readUTF();
+          crc = in.readLong();
+        } catch (EOFException | UTFDataFormatException e) {
+          break;
+        }
+
+        byte[] record = encode(id, name);
+        if (crc(record) != crc || id != recovered.size()) {
+          break;
+        }
+        recovered.add(name);
+        validBytes += record.length + 8;
+      }
+    }
+    return validBytes;
+  }
+
+  List<String> recovered() {
+    return recovered;
+  }
+
+  private static byte[] encode(int id, String name) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(id);
+    out.writeUTF(name);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  @Override
+  public void append(int id, String name) throws IOException {
+    byte[] record = encode(id, name);
+    ByteBuffer data = ByteBuffer.allocate(record.length + 8);
+    data.put(record).putLong(crc(record)).flip();
+
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+    if (sync) {
+      channel.force(false);
+    }
+  }
+
+  @Override
+  public void clear() throws IOException {
+    channel.truncate(0);
+    channel.position(0);
+    if (sync) {
+      channel.force(true);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,150 @@
+package server.persistence;
+
+import common.Logger;
+import common.model.User;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+class UserLog implements AutoCloseable {
+
+  private static final int COMPACT_MIN_RECORDS = 1024;
+
+  interface Snapshot {
+    int write() throws IOException;
+  }
+
+  private final File file;
+  private final boolean sync;
+
+  private final Lock lock = new ReentrantLock();
+
+  private final List<User> recovered = new ArrayList<>();
+  private final FileChannel channel;
+  private int records;
+  private int snapshotSize;
+
+  UserLog(File file, boolean sync) throws IOException {
+    this.file = file;
+    this.sync = sync;
+
+    long validBytes = scan();
+    this.channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    if (validBytes < channel.size()) {
+      Logger.error("UserLog", "Registo de utilizadores incompleto, a truncar");
+      channel.truncate(validBytes);
+      channel.force(true);
+    }
+    channel.position(validBytes);
+    this.records = recovered.size();
+  }
+
+  private long scan() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    long validBytes = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        String username;
+        String password;
+        long crc;
+        try {
+          username = in.readUTF();
+          password = in.readUTF();
+          crc = in.readLong();
+        } catch (EOFException | UTFDataFormatException e) {
+          break;
+        }
+
+        byte[] record = encode(username, password);
+        if (crc(record) != crc) {
+          break;
+        }
+        recovered.add(new User(username, password));
+        validBytes += record.length + 8;
+      }
+    }
+    return validBytes;
+  }
+
+  List<User> recovered() {
+    return recovered;
+  }
+
+  private static byte[] encode(String username, String password) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(username);
+    out.writeUTF(password);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  boolean append(User user) throws IOException {
+    byte[] record = encode(user.getUsername(), user.getPassword());
+    ByteBuffer data = ByteBuffer.allocate(record.length + 8);
+    data.put(record).putLong(crc(record)).flip();
+
+    boolean compact;
+    lock.lock();
+    try {
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+      records++;
+      compact = records >= Math.max(COMPACT_MIN_RECORDS, snapshotSize);
+    } finally {
+      lock.unlock();
+    }
+
+    if (sync) {
+      channel.force(false);
+    }
+    return compact;
+  }
+
+  void compact(Snapshot snapshot) throws IOException {
+    lock.lock();
+    try {
+      snapshotSize = snapshot.write();
+      channel.truncate(0);
+      channel.position(0);
+      if (sync) {
+        channel.force(true);
+      }
+      records = 0;
+      recovered.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
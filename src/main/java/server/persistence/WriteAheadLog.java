@@ -0,0 +1,467 @@
+package server.persistence;
+
+import common.Logger;
+import common.model.Event;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import server.data.ProductDictionary;
+
+public class WriteAheadLog implements AutoCloseable {
+
+  public static final long DEFAULT_SYNC_INTERVAL_MS = 2;
+  public static final int DEFAULT_SYNC_BATCH = 512;
+
+  private static final int MAGIC = 0x53445732;
+
+  private static class LogBuffer extends ByteArrayOutputStream {
+    final DataOutputStream out = new DataOutputStream(this);
+    int records;
+
+    LogBuffer() {
+      super(64 * 1024);
+    }
+
+    long crc(int from) {
+      CRC32 crc = new CRC32();
+      crc.update(buf, from, count - from);
+      return crc.getValue();
+    }
+
+    ByteBuffer asByteBuffer() {
+      return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    void clear() {
+      reset();
+      records = 0;
+    }
+  }
+
+  private final File walDir;
+  private final long syncIntervalNanos;
+  private final int syncBatch;
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition flushNeeded = lock.newCondition();
+  private final Condition durable = lock.newCondition();
+
+  private final Lock ioLock = new ReentrantLock();
+
+  private LogBuffer pending = new LogBuffer();
+  private LogBuffer spare = new LogBuffer();
+  private long firstPendingNanos;
+
+  private long appendedLsn;
+  private long durableLsn;
+  private IOException failure;
+  private boolean closed;
+
+  private FileChannel channel;
+  private int dayNumber;
+  private int segment;
+
+  private final Thread flusher;
+
+  public WriteAheadLog(File walDir, long syncIntervalMs, int syncBatch) throws IOException {
+    this.walDir = walDir;
+    this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMs);
+    this.syncBatch = Math.max(1, syncBatch);
+
+    if (!walDir.exists()) {
+      walDir.mkdirs();
+    }
+
+    this.flusher = new Thread(this::flushLoop, "wal-flusher");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  private File segmentFile(int dayNumber, int segment) {
+    return new File(walDir, "day_" + dayNumber + "_" + segment + ".wal");
+  }
+
+  private static int dayOf(File file) {
+    String name = file.getName();
+    return Integer.parseInt(name.substring(4, name.indexOf('_', 4)));
+  }
+
+  private static int segmentOf(File file) {
+    String name = file.getName();
+    return Integer.parseInt(name.substring(name.indexOf('_', 4) + 1, name.length() - 4));
+  }
+
+  public List<Event> recover(int dayNumber, int fromSeq, ProductDictionary products)
+      throws IOException {
+    List<Event> events = new ArrayList<>();
+    int nextSeq = fromSeq;
+    int lastSegment = -1;
+
+    List<File> segments = new ArrayList<>();
+    for (File log : listLogs()) {
+      if (dayOf(log) == dayNumber) {
+        segments.add(log);
+      } else {
+        log.delete();
+      }
+    }
+    segments.sort((a, b) -> Integer.compare(segmentOf(a), segmentOf(b)));
+
+    boolean torn = false;
+    for (File file : segments) {
+      lastSegment = segmentOf(file);
+      if (torn) {
+        file.delete();
+        continue;
+      }
+
+      long validBytes = 0;
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        in.mark(4);
+        boolean byId = false;
+        try {
+          byId = in.readInt() == MAGIC;
+        } catch (EOFException ignored) {
+        }
+        if (byId) {
+          validBytes = 4;
+        } else {
+          in.reset();
+        }
+
+        LogBuffer record = new LogBuffer();
+        while (true) {
+          int seq;
+          String product;
+          int quantity;
+          double price;
+          long crc;
+          record.clear();
+          try {
+            seq = in.readInt();
+            if (byId) {
+              int id = in.readInt();
+              quantity = in.readInt();
+              price = in.readDouble();
+              writeRecord(record.out, seq, id, quantity, price);
+              product = id >= 0 && id < products.size() ? products.name(id) : null;
+            } else {
+              product = in.readUTF();
+              quantity = in.readInt();
+              price = in.readDouble();
+              writeLegacyRecord(record.out, seq, product, quantity, price);
+            }
+            crc = in.readLong();
+          } catch (EOFException | UTFDataFormatException e) {
+            break;
+          }
+
+          if (record.crc(0) == crc && seq > nextSeq) {
+            throw new IOException(
+                "Lacuna no WAL do dia "
+                    + dayNumber
+                    + " ("
+                    + file.getName()
+                    + "): esperado evento "
+                    + nextSeq
+                    + ", encontrado "
+                    + seq);
+          }
+          if (record.crc(0) != crc || product == null) {
+            Logger.error("WAL", "Registo inválido no dia " + dayNumber + ", a truncar log");
+            torn = true;
+            break;
+          }
+          validBytes += record.size() + 8;
+          if (seq == nextSeq) {
+            events.add(new Event(product, quantity, price));
+            nextSeq++;
+          }
+        }
+      }
+
+      if (torn) {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+          ch.truncate(validBytes);
+          ch.force(true);
+        }
+      }
+    }
+
+    openSegment(dayNumber, lastSegment + 1);
+    Logger.log(
+        "WAL",
+        "Recuperados "
+            + events.size()
+            + " eventos do dia "
+            + dayNumber
+            + " (a partir do evento "
+            + fromSeq
+            + ")");
+    return events;
+  }
+
+  public void startDay(int dayNumber) throws IOException {
+    for (File log : listLogs()) {
+      if (dayOf(log) == dayNumber) {
+        log.delete();
+      }
+    }
+    openSegment(dayNumber, 0);
+  }
+
+  public int rotate() throws IOException {
+    ioLock.lock();
+    try {
+      openSegment(dayNumber, segment + 1);
+      return segment;
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  public void deleteSegmentsBefore(int dayNumber, int segment) {
+    for (File log : listLogs()) {
+      if (dayOf(log) == dayNumber && segmentOf(log) < segment) {
+        log.delete();
+      }
+    }
+  }
+
+  private void openSegment(int dayNumber, int segment) throws IOException {
+    ioLock.lock();
+    try {
+      flushPending();
+      if (channel != null) {
+        channel.close();
+      }
+      channel =
+          FileChannel.open(
+              segmentFile(dayNumber, segment).toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      channel.force(true);
+      this.dayNumber = dayNumber;
+      this.segment = segment;
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  public void deleteDay(int dayNumber) {
+    ioLock.lock();
+    try {
+      if (dayNumber != this.dayNumber) {
+        for (File log : listLogs()) {
+          if (dayOf(log) == dayNumber) {
+            log.delete();
+          }
+        }
+      }
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  private List<File> listLogs() {
+    List<File> logs = new ArrayList<>();
+    File[] files =
+        walDir.listFiles((dir, name) -> name.startsWith("day_") && name.endsWith(".wal"));
+    if (files != null) {
+      for (File f : files) {
+        try {
+          dayOf(f);
+          segmentOf(f);
+          logs.add(f);
+        } catch (RuntimeException ignored) {
+        }
+      }
+    }
+    return logs;
+  }
+
+  public long append(int seq, int product, int quantity, double price) throws IOException {
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      if (closed) {
+        throw new IOException("WAL fechado");
+      }
+
+      int start = pending.size();
+      writeRecord(pending.out, seq, product, quantity, price);
+      pending.out.writeLong(pending.crc(start));
+
+      if (pending.records++ == 0) {
+        firstPendingNanos = System.nanoTime();
+      }
+      if (pending.records == 1 || pending.records >= syncBatch) {
+        flushNeeded.signal();
+      }
+      return ++appendedLsn;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void writeRecord(
+      DataOutputStream out, int seq, int product, int quantity, double price)
+      throws IOException {
+    out.writeInt(seq);
+    out.writeInt(product);
+    out.writeInt(quantity);
+    out.writeDouble(price);
+  }
+
+  private static void writeLegacyRecord(
+      DataOutputStream out, int seq, String product, int quantity, double price)
+      throws IOException {
+    out.writeInt(seq);
+    out.writeUTF(product);
+    out.writeInt(quantity);
+    out.writeDouble(price);
+  }
+
+  public void awaitDurable(long lsn) throws IOException {
+    lock.lock();
+    try {
+      while (durableLsn < lsn && failure == null) {
+        durable.await();
+      }
+      if (durableLsn < lsn) {
+        throw failure;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Espera pelo WAL interrompida");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      lock.lock();
+      try {
+        while (!closed && !readyToFlush()) {
+          if (pending.records == 0) {
+            flushNeeded.await();
+          } else {
+            long waited = System.nanoTime() - firstPendingNanos;
+            flushNeeded.awaitNanos(syncIntervalNanos - waited);
+          }
+        }
+        if (closed && pending.records == 0) {
+          return;
+        }
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+
+      ioLock.lock();
+      try {
+        flushPending();
+      } catch (IOException e) {
+        Logger.error("WAL", "Erro ao sincronizar log: " + e.getMessage());
+      } finally {
+        ioLock.unlock();
+      }
+    }
+  }
+
+  private boolean readyToFlush() {
+    return pending.records >= syncBatch
+        || (pending.records > 0 && System.nanoTime() - firstPendingNanos >= syncIntervalNanos);
+  }
+
+  private void flushPending() throws IOException {
+    LogBuffer batch;
+    long target;
+
+    lock.lock();
+    try {
+      if (pending.records == 0) {
+        return;
+      }
+      batch = pending;
+      pending = spare;
+      spare = batch;
+      target = appendedLsn;
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      ByteBuffer data = batch.asByteBuffer();
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      lock.lock();
+      try {
+        failure = e;
+        durable.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      throw e;
+    }
+
+    lock.lock();
+    try {
+      batch.clear();
+      durableLsn = target;
+      durable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    ioLock.lock();
+    try {
+      flushPending();
+      lock.lock();
+      try {
+        closed = true;
+        flushNeeded.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    } finally {
+      ioLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package server;
+
+import common.Logger;
+import java.util.concurrent.ThreadFactory;
+
+final class VirtualThreads {
+
+  private VirtualThreads() {}
+
+  static ThreadFactory factory(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      Logger.error(
+          "Server",
+          "Threads virtuais indisponíveis (Java "
+              + Runtime.version().feature()
+              + "), a usar threads de plataforma");
+      return null;
+    }
+  }
+}
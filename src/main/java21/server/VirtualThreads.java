@@ -0,0 +1,12 @@
+package server;
+
+import java.util.concurrent.ThreadFactory;
+
+final class VirtualThreads {
+
+  private VirtualThreads() {}
+
+  static ThreadFactory factory(String name) {
+    return Thread.ofVirtual().name(name, 0).factory();
+  }
+}